@@ -17,6 +17,7 @@ import com.github.zjzcn.ceper.monitor.MonitorManager;
 import com.github.zjzcn.ceper.node.NodeManager;
 import com.github.zjzcn.ceper.processor.Processor;
 import com.github.zjzcn.ceper.processor.ProcessorFactory;
+import com.github.zjzcn.ceper.processor.SnapshotManager;
 import com.github.zjzcn.ceper.router.Router;
 import com.github.zjzcn.ceper.rule.RuleManager;
 import com.github.zjzcn.ceper.sink.Sink;
@@ -94,6 +95,7 @@ public class Engine {
 	public void config(Config rootConfig) {
 		MonitorManager.config(rootConfig);
 		RuleManager.config(rootConfig);
+		SnapshotManager.config(rootConfig);
 		
 		router = new Router();
 		router.config(rootConfig);
@@ -138,12 +140,16 @@ public class Engine {
 				sinkProcessers.add(processor);
 			}
 			sink.setProcessors(sinkProcessers);
-			sinkRunners.put(name, new SinkRunner(sink));
+			SinkRunner sinkRunner = new SinkRunner(sink);
+			sinkRunner.config(sinkConfig);
+			sinkRunners.put(name, sinkRunner);
 		}
 	}
 
 	public void start() {
 		RuleManager.start();
+		// before the processors, they restore in start()
+		SnapshotManager.start();
 		
 		for (Entry<String, Processor> entry : processors.entrySet()) {
 			try {
@@ -179,29 +185,34 @@ public class Engine {
 	}
 
 	public void stop() {
-		router.stop();
-		
 		for (Entry<String, SourceRunner> entry : sourceRunners.entrySet()) {
 			try {
-				entry.getValue().start();
+				entry.getValue().stop();
 			} catch (Exception e) {
 				logger.error("Error while Stoping {}", entry.getValue(), e);
 			}
 		}
+		
+		// flushes the events routed to other nodes
+		router.stop();
 
-		for (Entry<String, SinkRunner> entry : sinkRunners.entrySet()) {
+		// before the sinks, a processor may emit its open windows on stop
+		for (Entry<String, Processor> entry : processors.entrySet()) {
 			try {
-				entry.getValue().start();
+				entry.getValue().stop();
 			} catch (Exception e) {
-				logger.error("Error while Stoping {}", entry.getValue(), e);
+				logger.error("Error while Stoping Processor {}", entry.getValue(), e);
 			}
 		}
 
-		for (Entry<String, Processor> entry : processors.entrySet()) {
+		// the last snapshot, after the processors emitted on stop, so it is not emitted again
+		SnapshotManager.stop();
+
+		for (Entry<String, SinkRunner> entry : sinkRunners.entrySet()) {
 			try {
-				entry.getValue().start();
+				entry.getValue().stop();
 			} catch (Exception e) {
-				logger.error("Error while Stoping Processor {}", entry.getValue(), e);
+				logger.error("Error while Stoping {}", entry.getValue(), e);
 			}
 		}
 		
@@ -5,6 +5,17 @@ public class Constants {
 	public static final String DEFAULT_CLUSTER_NAME = "cluster1";
 	public static final String DEFAULT_ZK_SERVERS = "localhost:2181";
 	public static final int DEFAULT_ROUTE_PORT = 8404;
+	public static final int DEFAULT_ROUTE_BATCH_SIZE = 500;
+	public static final long DEFAULT_ROUTE_LINGER_MS = 5;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	public static final long DEFAULT_SNAPSHOT_INTERVAL_MS = 60000;
+	public static final int DEFAULT_SNAPSHOT_FILE_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_HANDOFF_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_SOURCE_MAX_IN_FLIGHT = 10000;
+	public static final int DEFAULT_SOURCE_MAX_RETRIES = 3;
+	public static final int DEFAULT_HANDOFF_BUFFER_SIZE = 100000;
+	public static final int DEFAULT_OUTLIER_MAX_SERIES = 1000000;
+	public static final long DEFAULT_OUTLIER_SERIES_IDLE_MS = 24 * 60 * 60 * 1000L;
 	
 	public static final String ZK_ROOT = "/ceper";
 	public static final String PATH_SEPARATOR = "/";
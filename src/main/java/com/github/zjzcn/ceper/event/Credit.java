@@ -0,0 +1,85 @@
+package com.github.zjzcn.ceper.event;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flow control of one source partition. An event holds one credit from the time
+ * it is routed until it was processed, locally or by the remote node that acked
+ * its batch, or by the esper shard it was queued to. A slow sink blocks the
+ * processors of a result bus with the block overflow policy, so their credits come
+ * back late.
+ *
+ * The source stops reading the partition when the credits are used up and goes on
+ * when half of them came back.
+ *
+ * A child credit counts the events of one batch, e.g. one poll of the partition,
+ * in itself and in its parent. The source commits the batch when all of them came
+ * back, and redelivers it when one of them failed, e.g. on a remote node.
+ *
+ * @author zjzcn
+ *
+ */
+public class Credit {
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final int limit;
+
+	private final Credit parent;
+
+	private volatile boolean failed;
+
+	public Credit(int limit) {
+		this(limit, null);
+	}
+
+	private Credit(int limit, Credit parent) {
+		this.limit = limit;
+		this.parent = parent;
+	}
+
+	/**
+	 * A credit for one batch of events, also counted by this one.
+	 */
+	public Credit newChild() {
+		return new Credit(limit, this);
+	}
+
+	public void acquire() {
+		inFlight.incrementAndGet();
+		if (parent != null) {
+			parent.acquire();
+		}
+	}
+
+	public void release() {
+		inFlight.decrementAndGet();
+		if (parent != null) {
+			parent.release();
+		}
+	}
+
+	/**
+	 * Marks an event of this credit as not processed, call before its release.
+	 */
+	public void fail() {
+		failed = true;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public boolean isExhausted() {
+		return inFlight.get() >= limit;
+	}
+
+	public boolean isRecovered() {
+		return inFlight.get() <= limit / 2;
+	}
+
+}
@@ -18,6 +18,8 @@ public class SourceEvent  extends BaseBean {
 	private long timestamp;
 	private Map<String, Object> data;
 	Map<String, Object> attachments;
+	// local only, never sent to another node
+	private transient Credit credit;
 
 	public SourceEvent() {
 		timestamp = System.currentTimeMillis();
@@ -79,4 +81,47 @@ public class SourceEvent  extends BaseBean {
 		attachments.put(key, value);
 	}
 
+	public void setCredit(Credit credit) {
+		this.credit = credit;
+	}
+
+	/**
+	 * Takes one more credit of the source for work on the event that goes on after
+	 * process() returned, like a queued hand-over to another thread. The caller
+	 * releases it when done.
+	 *
+	 * @return the credit taken, null if the event holds none
+	 */
+	public Credit retainCredit() {
+		Credit c = credit;
+		if (c != null) {
+			c.acquire();
+		}
+		return c;
+	}
+
+	/**
+	 * Gives the credit of the event back to its source, once.
+	 */
+	public void releaseCredit() {
+		Credit c = credit;
+		if (c != null) {
+			credit = null;
+			c.release();
+		}
+	}
+
+	/**
+	 * Gives the credit back for an event that was not processed, its source
+	 * redelivers it.
+	 */
+	public void failCredit() {
+		Credit c = credit;
+		if (c != null) {
+			credit = null;
+			c.fail();
+			c.release();
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package com.github.zjzcn.ceper.filter;
+
+import java.util.List;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+
+/**
+ * Converter taking all raw records of one poll at once.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface BatchConverter extends Converter {
+
+	/**
+	 * Converts the raw records and appends the events to out.
+	 */
+	void convert(List<?> rawDatas, List<SourceEvent> out);
+}
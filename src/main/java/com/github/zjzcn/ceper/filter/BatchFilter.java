@@ -0,0 +1,17 @@
+package com.github.zjzcn.ceper.filter;
+
+import java.util.List;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+
+/**
+ * Filter working on a whole batch. Events are dropped by removing them from the
+ * list and transformed by replacing them in place.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface BatchFilter extends Filter {
+
+	void filter(List<SourceEvent> events);
+}
@@ -1,12 +1,14 @@
 package com.github.zjzcn.ceper.filter;
 
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.zjzcn.ceper.event.Credit;
 import com.github.zjzcn.ceper.event.SourceEvent;
 import com.github.zjzcn.ceper.router.Router;
 import com.github.zjzcn.ceper.source.Source;
@@ -19,7 +21,15 @@ public class FilterChain {
 	
 	private Converter converter;
 	
-	private List<Filter> filters = new LinkedList<Filter>();
+	private List<Filter> filters = new ArrayList<Filter>();
+	
+	// per thread event buffer, reused by every batch the thread processes
+	private final ThreadLocal<List<SourceEvent>> eventBuffers = new ThreadLocal<List<SourceEvent>>() {
+		@Override
+		protected List<SourceEvent> initialValue() {
+			return new ArrayList<SourceEvent>();
+		}
+	};
 
 	private Source source;
 	
@@ -41,6 +51,9 @@ public class FilterChain {
 				case "json":
 					converter = new JsonConverter();
 					break;
+				case "json_bytes":
+					converter = new JsonBytesConverter();
+					break;
 				default:
 					converter = (Converter) ClassUtils.newInstance(type);
 					break;
@@ -77,8 +90,103 @@ public class FilterChain {
 			event.setSourceName(sourceName);
 			for (Filter filter : filters) {
 				event = filter.filter(event);
+				if (event == null) {
+					break;
+				}
+			}
+			if (event != null) {
+				router.proccess(event);
+			}
+		}
+	}
+	
+	/**
+	 * Processes all raw records of one poll. Batch converters and filters get the
+	 * whole batch; the others are applied event by event, a null filter result
+	 * drops the event. A record that fails to convert is logged and skipped.
+	 */
+	public void process(List<?> rawDatas) {
+		process(rawDatas, null);
+	}
+	
+	/**
+	 * Same as {@link #process(List)}, every routed event holds one credit until
+	 * it was processed, see {@link Credit}.
+	 */
+	public void process(List<?> rawDatas, Credit credit) {
+		List<SourceEvent> events = eventBuffers.get();
+		try {
+			boolean converted = false;
+			if (converter instanceof BatchConverter) {
+				try {
+					((BatchConverter) converter).convert(rawDatas, events);
+					converted = true;
+				} catch (Exception e) {
+					// find the bad record: convert again one by one
+					logger.warn("Batch conversion failed, converting {} records one by one.", rawDatas.size(), e);
+					events.clear();
+				}
+			}
+			if (!converted) {
+				for (int i = 0, size = rawDatas.size(); i < size; i++) {
+					convertEach(rawDatas.get(i), events);
+				}
+			}
+			
+			String sourceName = source.getName();
+			for (int i = 0, size = events.size(); i < size; i++) {
+				events.get(i).setSourceName(sourceName);
 			}
-			router.proccess(event);;
+			
+			for (int i = 0, size = filters.size(); i < size && !events.isEmpty(); i++) {
+				Filter filter = filters.get(i);
+				if (filter instanceof BatchFilter) {
+					((BatchFilter) filter).filter(events);
+				} else {
+					filterEach(filter, events);
+				}
+			}
+			
+			for (int i = 0, size = events.size(); i < size; i++) {
+				SourceEvent event = events.get(i);
+				if (credit != null) {
+					credit.acquire();
+					event.setCredit(credit);
+				}
+				router.proccess(event);
+			}
+		} finally {
+			events.clear();
+		}
+	}
+	
+	private void convertEach(Object rawData, List<SourceEvent> events) {
+		try {
+			List<SourceEvent> converted = converter.convert(rawData);
+			if (converted != null) {
+				events.addAll(converted);
+			}
+		} catch (Exception e) {
+			logger.error("Skip a record that failed to convert, source={}, record={}", source.getName(), abbreviate(rawData), e);
+		}
+	}
+	
+	private static String abbreviate(Object rawData) {
+		String str = rawData instanceof byte[] ? new String((byte[]) rawData, StandardCharsets.UTF_8) : String.valueOf(rawData);
+		return str.length() > 200 ? str.substring(0, 200) + "..." : str;
+	}
+	
+	// applies the filter in place, compacting away dropped events
+	private void filterEach(Filter filter, List<SourceEvent> events) {
+		int kept = 0;
+		for (int i = 0, size = events.size(); i < size; i++) {
+			SourceEvent event = filter.filter(events.get(i));
+			if (event != null) {
+				events.set(kept++, event);
+			}
+		}
+		for (int i = events.size() - 1; i >= kept; i--) {
+			events.remove(i);
 		}
 	}
 
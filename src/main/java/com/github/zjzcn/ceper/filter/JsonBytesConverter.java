@@ -0,0 +1,418 @@
+package com.github.zjzcn.ceper.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.typesafe.config.Config;
+
+/**
+ * Same format as {@link JsonConverter}, but parses the raw kafka bytes directly
+ * (source value_type = "bytes") instead of going through String and fastjson.
+ *
+ * Field names and other short strings are looked up in a per thread cache keyed by
+ * their bytes, so repeated keys do not allocate. Integers become Integer or Long,
+ * decimals become Double.
+ *
+ * @author zjzcn
+ *
+ */
+public class JsonBytesConverter implements BatchConverter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>() {
+		@Override
+		protected Parser initialValue() {
+			return new Parser();
+		}
+	};
+
+	@Override
+	public void config(Config config) {
+
+	}
+
+	@Override
+	public void init() {
+
+	}
+
+	@Override
+	public void close() {
+
+	}
+
+	@Override
+	public List<SourceEvent> convert(Object rawData) {
+		List<SourceEvent> list = new ArrayList<>(1);
+		convert(rawData, list, parsers.get());
+		return list;
+	}
+
+	@Override
+	public void convert(List<?> rawDatas, List<SourceEvent> out) {
+		Parser parser = parsers.get();
+		for (int i = 0, size = rawDatas.size(); i < size; i++) {
+			convert(rawDatas.get(i), out, parser);
+		}
+	}
+
+	private void convert(Object rawData, List<SourceEvent> out, Parser parser) {
+		byte[] bytes;
+		if (rawData instanceof byte[]) {
+			bytes = (byte[]) rawData;
+		} else if (rawData instanceof String) {
+			bytes = ((String) rawData).getBytes(UTF8);
+		} else {
+			return;
+		}
+		SourceEvent event = parser.parseEvent(bytes);
+		event.setHashTag(event.getDataType());
+		out.add(event);
+	}
+
+	private static final class Parser {
+
+		private static final int MAX_CACHED_LENGTH = 32;
+		private static final int CACHE_SIZE = 1024;
+
+		// direct mapped string cache: slot by hash of the bytes
+		private final byte[][] cachedBytes = new byte[CACHE_SIZE][];
+		private final String[] cachedStrings = new String[CACHE_SIZE];
+
+		private char[] chars = new char[64];
+
+		private int lastDataSize = 16;
+
+		private byte[] buf;
+		private int pos;
+
+		SourceEvent parseEvent(byte[] bytes) {
+			buf = bytes;
+			pos = 0;
+			try {
+				SourceEvent event = new SourceEvent();
+				expect('{');
+				if (peek() == '}') {
+					pos++;
+					return event;
+				}
+				do {
+					String key = readString(true);
+					expect(':');
+					switch (key) {
+					case "dataType":
+						event.setDataType((String) readValue(true));
+						break;
+					case "hashTag":
+						event.setHashTag((String) readValue(true));
+						break;
+					case "timestamp":
+						event.setTimstamp(((Number) readValue(false)).longValue());
+						break;
+					case "data":
+						event.setData(readObjectOrNull(lastDataSize));
+						if (event.getData() != null) {
+							lastDataSize = event.getData().size();
+						}
+						break;
+					case "attachments":
+						Map<String, Object> attachments = readObjectOrNull(4);
+						if (attachments != null) {
+							event.setAttachments(attachments);
+						}
+						break;
+					default:
+						readValue(false);
+						break;
+					}
+				} while (nextMember('}'));
+				return event;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw error("Unexpected end");
+			} finally {
+				buf = null;
+			}
+		}
+
+		private Map<String, Object> readObjectOrNull(int expectedSize) {
+			if (peek() == 'n') {
+				readLiteral("null");
+				return null;
+			}
+			return readObject(expectedSize);
+		}
+
+		private Map<String, Object> readObject(int expectedSize) {
+			expect('{');
+			Map<String, Object> map = new HashMap<String, Object>(expectedSize * 4 / 3 + 1);
+			if (peek() == '}') {
+				pos++;
+				return map;
+			}
+			do {
+				String key = readString(true);
+				expect(':');
+				map.put(key, readValue(false));
+			} while (nextMember('}'));
+			return map;
+		}
+
+		private List<Object> readArray() {
+			expect('[');
+			List<Object> list = new ArrayList<Object>();
+			if (peek() == ']') {
+				pos++;
+				return list;
+			}
+			do {
+				list.add(readValue(false));
+			} while (nextMember(']'));
+			return list;
+		}
+
+		private Object readValue(boolean cacheString) {
+			byte b = peek();
+			switch (b) {
+			case '"':
+				return readString(cacheString);
+			case '{':
+				return readObject(8);
+			case '[':
+				return readArray();
+			case 't':
+				readLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				readLiteral("false");
+				return Boolean.FALSE;
+			case 'n':
+				readLiteral("null");
+				return null;
+			default:
+				return readNumber();
+			}
+		}
+
+		private Object readNumber() {
+			int start = pos;
+			boolean negative = false;
+			if (buf[pos] == '-') {
+				negative = true;
+				pos++;
+			}
+			long value = 0;
+			int digits = 0;
+			while (pos < buf.length && buf[pos] >= '0' && buf[pos] <= '9') {
+				value = value * 10 + (buf[pos++] - '0');
+				digits++;
+			}
+			if (digits == 0) {
+				throw error("Invalid number");
+			}
+			if (pos < buf.length && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E')) {
+				pos++;
+				while (pos < buf.length && isNumberChar(buf[pos])) {
+					pos++;
+				}
+				return Double.parseDouble(new String(buf, start, pos - start, UTF8));
+			}
+			if (digits > 18) {
+				// may overflow long, let the JDK decide
+				return Long.parseLong(new String(buf, start, pos - start, UTF8));
+			}
+			value = negative ? -value : value;
+			if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+				return (int) value;
+			}
+			return value;
+		}
+
+		private String readString(boolean cache) {
+			skipWhitespace();
+			if (buf[pos] != '"') {
+				throw error("Expected string");
+			}
+			int start = ++pos;
+			boolean ascii = true;
+			while (true) {
+				byte b = buf[pos];
+				if (b == '"') {
+					break;
+				}
+				if (b == '\\') {
+					return readEscapedString(start);
+				}
+				if (b < 0) {
+					ascii = false;
+				}
+				pos++;
+			}
+			int length = pos - start;
+			pos++;
+			if (!ascii) {
+				return new String(buf, start, length, UTF8);
+			}
+			if (cache && length <= MAX_CACHED_LENGTH) {
+				return cachedString(start, length);
+			}
+			return asciiString(start, length);
+		}
+
+		private String cachedString(int start, int length) {
+			int hash = 0;
+			for (int i = start, end = start + length; i < end; i++) {
+				hash = 31 * hash + buf[i];
+			}
+			int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+			byte[] cached = cachedBytes[slot];
+			if (cached != null && cached.length == length && sameBytes(cached, start)) {
+				return cachedStrings[slot];
+			}
+			String value = asciiString(start, length);
+			byte[] key = new byte[length];
+			System.arraycopy(buf, start, key, 0, length);
+			cachedBytes[slot] = key;
+			cachedStrings[slot] = value;
+			return value;
+		}
+
+		private boolean sameBytes(byte[] cached, int start) {
+			for (int i = 0; i < cached.length; i++) {
+				if (cached[i] != buf[start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private String asciiString(int start, int length) {
+			char[] cs = charBuffer(length);
+			for (int i = 0; i < length; i++) {
+				cs[i] = (char) buf[start + i];
+			}
+			return new String(cs, 0, length);
+		}
+
+		private String readEscapedString(int start) {
+			// slow path: copy the raw bytes up to here, then decode escapes. Unicode
+			// escapes go in as chars, each half of a surrogate pair encoded alone would be "?"
+			StringBuilder sb = new StringBuilder(pos - start + 16);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(pos - start + 16);
+			out.write(buf, start, pos - start);
+			while (true) {
+				byte b = buf[pos++];
+				if (b == '"') {
+					break;
+				}
+				if (b != '\\') {
+					out.write(b);
+					continue;
+				}
+				byte e = buf[pos++];
+				switch (e) {
+				case 'n':
+					out.write('\n');
+					break;
+				case 't':
+					out.write('\t');
+					break;
+				case 'r':
+					out.write('\r');
+					break;
+				case 'b':
+					out.write('\b');
+					break;
+				case 'f':
+					out.write('\f');
+					break;
+				case 'u':
+					flush(out, sb);
+					sb.append((char) Integer.parseInt(new String(buf, pos, 4, UTF8), 16));
+					pos += 4;
+					break;
+				default:
+					out.write(e);
+					break;
+				}
+			}
+			flush(out, sb);
+			return sb.toString();
+		}
+
+		// an escape starts with an ascii byte, never splits a utf-8 sequence
+		private void flush(ByteArrayOutputStream out, StringBuilder sb) {
+			if (out.size() > 0) {
+				sb.append(new String(out.toByteArray(), UTF8));
+				out.reset();
+			}
+		}
+
+		private char[] charBuffer(int length) {
+			if (chars.length < length) {
+				chars = new char[Math.max(length, chars.length * 2)];
+			}
+			return chars;
+		}
+
+		private void readLiteral(String literal) {
+			for (int i = 0; i < literal.length(); i++) {
+				if (buf[pos++] != literal.charAt(i)) {
+					throw error("Expected " + literal);
+				}
+			}
+		}
+
+		private boolean nextMember(char end) {
+			byte b = peek();
+			pos++;
+			if (b == ',') {
+				return true;
+			}
+			if (b == end) {
+				return false;
+			}
+			throw error("Expected ',' or '" + end + "'");
+		}
+
+		private void expect(char c) {
+			if (peek() != c) {
+				throw error("Expected '" + c + "'");
+			}
+			pos++;
+		}
+
+		private byte peek() {
+			skipWhitespace();
+			if (pos >= buf.length) {
+				throw error("Unexpected end");
+			}
+			return buf[pos];
+		}
+
+		private void skipWhitespace() {
+			while (pos < buf.length) {
+				byte b = buf[pos];
+				if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+					return;
+				}
+				pos++;
+			}
+		}
+
+		private static boolean isNumberChar(byte b) {
+			return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == 'e' || b == 'E' || b == '.';
+		}
+
+		private RuntimeException error(String message) {
+			return new RuntimeException("JsonBytesConverter " + message + " at " + pos + ": "
+					+ new String(buf, 0, Math.min(buf.length, 200), UTF8));
+		}
+	}
+
+}
@@ -1,6 +1,6 @@
 package com.github.zjzcn.ceper.filter;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.github.zjzcn.ceper.event.SourceEvent;
@@ -13,7 +13,7 @@ import com.typesafe.config.Config;
  * @author zjzcn
  *
  */
-public class JsonConverter implements Converter {
+public class JsonConverter implements BatchConverter {
 
 	@Override
 	public void config(Config config) {
@@ -32,13 +32,24 @@ public class JsonConverter implements Converter {
 
 	@Override
 	public List<SourceEvent> convert(Object rawData) {
-		List<SourceEvent> list = new LinkedList<>();
+		List<SourceEvent> list = new ArrayList<>(1);
+		convert(rawData, list);
+		return list;
+	}
+
+	@Override
+	public void convert(List<?> rawDatas, List<SourceEvent> out) {
+		for (int i = 0, size = rawDatas.size(); i < size; i++) {
+			convert(rawDatas.get(i), out);
+		}
+	}
+	
+	private void convert(Object rawData, List<SourceEvent> out) {
 		if(rawData instanceof String) {
 			SourceEvent event = JsonUtils.toBean((String)rawData, SourceEvent.class);
 			event.setHashTag(event.getDataType());
-			list.add(event);
+			out.add(event);
 		}
-		return list;
 	}
 
 }
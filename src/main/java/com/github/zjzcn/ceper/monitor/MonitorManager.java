@@ -2,6 +2,7 @@ package com.github.zjzcn.ceper.monitor;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -22,7 +23,8 @@ public class MonitorManager {
 	
 	private static final Logger logger = LoggerFactory.getLogger(MonitorManager.class);
 	
-	private static List<MetricCollector> collectors = new LinkedList<>();
+	// collectors may register while the report task runs
+	private static List<MetricCollector> collectors = new CopyOnWriteArrayList<>();
 	
 	private static List<Metric> metrics = new LinkedList<>();
 	
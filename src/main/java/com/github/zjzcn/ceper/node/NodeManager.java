@@ -1,5 +1,6 @@
 package com.github.zjzcn.ceper.node;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -38,6 +39,9 @@ public class NodeManager {
 
 	private static PathChildrenCache cache;
 	
+	// immutable, replaced on every change, so it can be compared by identity
+	private static volatile Set<Node> nodes = Collections.emptySet();
+	
 	public static void config(Config config) {
 		if (config.hasPath("cluster_name")) {
 			clusterName = config.getString("cluster_name");
@@ -75,6 +79,7 @@ public class NodeManager {
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+		refreshNodes();
 		logger.info("Started NodeManager.");
 	}
 
@@ -89,6 +94,7 @@ public class NodeManager {
 		currentNode.setHost(host);
 		currentNode.setPort(nodePort);
 		register(currentNode);
+		refreshNodes();
 	}
 	
 	public static boolean isCurrentNode(Node node) {
@@ -138,18 +144,30 @@ public class NodeManager {
 		return currentNode;
 	}
 
+	/**
+	 * The same unmodifiable set until the nodes change.
+	 */
 	public static Set<Node> getNodes() {
-		Set<Node> nodes = new HashSet<>();
+		return nodes;
+	}
+	
+	private static synchronized void refreshNodes() {
+		Set<Node> newNodes = new HashSet<>();
 		List<ChildData> childDatas = cache.getCurrentData();
 		for (ChildData childData : childDatas) {
 			Node n = convertNode(childData);
-			nodes.add(n);
+			newNodes.add(n);
+		}
+		if (currentNode != null) {
+			newNodes.add(currentNode);
+		}
+		if (!newNodes.equals(nodes)) {
+			nodes = Collections.unmodifiableSet(newNodes);
 		}
-		nodes.add(currentNode);
-		return nodes;
 	}
 	
 	private static void notifyListeners() {
+		refreshNodes();
 		Set<Node> nodes = getNodes();
 		logger.debug("Get nodes form cache, nodes={}", nodes);
 		for (NodeListener listener : listeners) {
@@ -1,9 +1,25 @@
 package com.github.zjzcn.ceper.processor;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+import com.typesafe.config.Config;
+
 public abstract class AbstractProcessor implements Processor {
 
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final int DEFAULT_QUEUE_CAPACITY = 16384;
+	
 	private String name;
 	
+	private volatile ResultBus resultBus;
+	
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	
+	private ResultBus.OverflowPolicy overflowPolicy = ResultBus.OverflowPolicy.BLOCK;
+	
 	@Override
 	public void setName(String name) {
 		this.name = name;
@@ -14,4 +30,50 @@ public abstract class AbstractProcessor implements Processor {
 		return name;
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Reads queue_capacity and overflow_policy, call from config().
+	 */
+	protected void configResultBus(Config config) {
+		if (config.hasPath("queue_capacity")) {
+			queueCapacity = config.getInt("queue_capacity");
+		}
+		if (config.hasPath("overflow_policy")) {
+			overflowPolicy = ResultBus.parsePolicy(config.getString("overflow_policy"));
+		}
+		if (overflowPolicy != ResultBus.OverflowPolicy.BLOCK) {
+			logger.warn("Processor[{}] does not hold sources back for slow sinks, overflow_policy={}.", name, overflowPolicy);
+		}
+	}
+	
+	/**
+	 * The bus exists from the first subscribe or emit on, whichever comes first.
+	 */
+	private synchronized ResultBus getResultBus() {
+		if (resultBus == null) {
+			resultBus = new ResultBus(getName(), queueCapacity, overflowPolicy);
+		}
+		return resultBus;
+	}
+	
+	/**
+	 * Publishes a result to all subscribed sinks.
+	 */
+	protected void emit(ResultEvent event) {
+		ResultBus bus = resultBus;
+		if (bus == null) {
+			bus = getResultBus();
+		}
+		bus.publish(event);
+	}
+	
+	@Override
+	public ResultSubscription subscribe(String subscriber, ResultSignal signal) {
+		return getResultBus().subscribe(subscriber, signal);
+	}
+	
+	@Override
+	public void unsubscribe(ResultSubscription subscription) {
+		getResultBus().unsubscribe(subscription);
+	}
+	
+}
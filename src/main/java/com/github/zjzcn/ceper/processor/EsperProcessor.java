@@ -1,41 +1,67 @@
 package com.github.zjzcn.ceper.processor;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.espertech.esper.client.EPAdministrator;
-import com.espertech.esper.client.EPRuntime;
-import com.espertech.esper.client.EPServiceProvider;
-import com.espertech.esper.client.EPServiceProviderManager;
 import com.espertech.esper.client.EPStatement;
 import com.espertech.esper.client.EventBean;
 import com.espertech.esper.client.UpdateListener;
 import com.github.zjzcn.ceper.event.ResultEvent;
 import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.monitor.Metric;
+import com.github.zjzcn.ceper.monitor.MetricCollector;
 import com.github.zjzcn.ceper.rule.Defination;
 import com.github.zjzcn.ceper.rule.Rule;
+import com.github.zjzcn.ceper.rule.RuleDiff;
 import com.github.zjzcn.ceper.rule.RuleListener;
 import com.github.zjzcn.ceper.rule.RuleManager;
+import com.github.zjzcn.ceper.utils.Assert;
 import com.typesafe.config.Config;
 
+/**
+ * Owns its own Esper engines: events are partitioned by hashTag onto shards, each
+ * shard is an isolated engine fed by one worker thread, so events of the same key
+ * are processed in order.
+ * 
+ * Definations are registered as object-array event types. The property order of a
+ * dataType only ever grows at the end, so events are converted to Object[] once on
+ * the calling thread and Esper reads properties by index. A shard extends a type in
+ * order with its queued events and pads those converted before. The type of an
+ * existing property cannot change, such a change is logged and ignored.
+ * 
+ * @author zjzcn
+ *
+ */
 public class EsperProcessor extends AbstractProcessor {
 	
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	
-	private static final Integer DEFAULT_CAPACITY = 10000;
+	private static final int DEFAULT_SHARD_QUEUE_CAPACITY = 10000;
 	
-	private EPServiceProvider esperProvider;
+	private EsperShard[] shards;
 	
-	private BlockingQueue<ResultEvent> resultQueue;
+	// statements running on the shards, by statementId
+	private final Map<String, Rule> activeRules = new HashMap<String, Rule>();
 	
-	private int queueCapacity = DEFAULT_CAPACITY;
+	// object-array property order by dataType, same on all shards
+	private final ConcurrentMap<String, String[]> propertyOrders = new ConcurrentHashMap<String, String[]>();
+	
+	// property types by dataType, guarded by this
+	private final Map<String, Map<String, Object>> propertyTypes = new HashMap<String, Map<String, Object>>();
+	
+	private int shardCount = 1;
+	
+	private int shardQueueCapacity = DEFAULT_SHARD_QUEUE_CAPACITY;
 	
 	@Override
 	public String getProcessorType() {
@@ -44,88 +70,203 @@ public class EsperProcessor extends AbstractProcessor {
 	
 	@Override
 	public void config(Config config) {
-		
+		if (config.hasPath("shards")) {
+			shardCount = config.getInt("shards");
+			Assert.isTrue(shardCount > 0, "Esper processor config item[shards] must be positive.");
+		}
+		if (config.hasPath("shard_queue_capacity")) {
+			shardQueueCapacity = config.getInt("shard_queue_capacity");
+		}
+		configResultBus(config);
 	}
 
 	@Override
 	public void start() {
 		logger.info("Starting EsperProcessor, name={}.", getName());
-		resultQueue = new LinkedBlockingQueue<ResultEvent>(queueCapacity);
-		esperProvider = EPServiceProviderManager.getDefaultProvider();
-		final EPAdministrator admin = esperProvider.getEPAdministrator();
+		shards = new EsperShard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new EsperShard(getName() + "-" + i, shardQueueCapacity);
+		}
 
 		RuleManager.subscribe(new RuleListener() {
 			@Override
 			public void childhanged(Set<Rule> rules) {
-				addRulesToEsper(admin, rules);
+				applyRules(rules);
 			}
 
 		});
 		
 		Set<Rule> rules = RuleManager.getRules();
-		addRulesToEsper(admin, rules);
-		logger.info("Started EsperProcessor, name={}.", getName());
+		applyRules(rules);
+		for (EsperShard shard : shards) {
+			shard.start();
+		}
+		new MetricCollector() {
+			@Override
+			public List<Metric> collect() {
+				List<Metric> metrics = new ArrayList<Metric>(shards.length);
+				for (int i = 0; i < shards.length; i++) {
+					metrics.add(new Metric("processor." + getName() + ".shard." + i + ".queue_size",
+							String.valueOf(shards[i].getQueueSize())));
+				}
+				return metrics;
+			}
+		};
+		logger.info("Started EsperProcessor, name={}, shards={}.", getName(), shardCount);
 	}
 
 	@Override
 	public void stop() {
-		esperProvider.destroy();
+		for (EsperShard shard : shards) {
+			shard.stop();
+		}
 	}
 
 	@Override
 	public void process(SourceEvent event) {
-		EPRuntime runtime = esperProvider.getEPRuntime();
-		runtime.sendEvent(event.getData(), event.getDataType());
+		String[] propertyNames = propertyOrders.get(event.getDataType());
+		if (propertyNames == null) {
+			logger.debug("No defination for event, dropped, dataType={}", event.getDataType());
+			return;
+		}
+		Map<String, Object> data = event.getData();
+		Object[] values = new Object[propertyNames.length];
+		if (data != null) {
+			for (int i = 0; i < propertyNames.length; i++) {
+				values[i] = data.get(propertyNames[i]);
+			}
+		}
+		String key = event.getHashTag() != null ? event.getHashTag() : event.getDataType();
+		int index = shards.length == 1 ? 0 : (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+		// the credit is held until the shard worker evaluated the event
+		shards[index].send(event.getDataType(), values, event.retainCredit());
 	}
 
-	@Override
-	public ResultEvent getResult() {
+
+	/**
+	 * Only the statements that were added, removed or changed since the last rule
+	 * set are touched, the others keep running with their window state.
+	 */
+	private synchronized void applyRules(Set<Rule> rules) {
+		List<Rule> esperRules = new ArrayList<Rule>();
+		for (Rule rule : rules) {
+			if (getProcessorType().equals(rule.getProcessorType())) {
+				esperRules.add(rule);
+			}
+		}
+		RuleDiff diff = RuleDiff.diff(activeRules, esperRules);
+		if (diff.isEmpty()) {
+			return;
+		}
+		logger.info("Apply rule changes to Esper, name={}, diff={}", getName(), diff);
+		for (Rule rule : diff.getRemoved()) {
+			for (EsperShard shard : shards) {
+				destroyStatement(shard.getAdministrator(), rule);
+			}
+			activeRules.remove(rule.getStatementId());
+		}
+		for (Rule rule : diff.getChanged()) {
+			if (createStatements(rule)) {
+				activeRules.put(rule.getStatementId(), rule);
+			}
+		}
+		for (Rule rule : diff.getAdded()) {
+			if (createStatements(rule)) {
+				activeRules.put(rule.getStatementId(), rule);
+			}
+		}
+	}
+	
+	// creates or replaces the statement of the rule on every shard
+	private boolean createStatements(Rule rule) {
 		try {
-			return resultQueue.take();
-		} catch (InterruptedException e) {
-			// NOOP
+			addDefinations(rule);
+			for (EsperShard shard : shards) {
+				EPAdministrator admin = shard.getAdministrator();
+				destroyStatement(admin, rule);
+				createStatement(admin, rule);
+			}
+			return true;
+		} catch (Exception e) {
+			logger.error("Create EPL to Esper failed, rule=" + rule, e);
+			return false;
 		}
-		return null;
 	}
 	
+	private void destroyStatement(EPAdministrator admin, Rule rule) {
+		EPStatement state = admin.getStatement(rule.getStatementId());
+		if (state != null) {
+			state.destroy();
+			logger.info("Destroy EPL in Esper, statementId={}", rule.getStatementId());
+		}
+	}
 
-	private void addRulesToEsper(final EPAdministrator admin, Set<Rule> rules) {
-		for(final Rule rule : rules) {
-			if(!getProcessorType().equals(rule.getProcessorType())) {
-				continue;
+	private void addDefinations(Rule rule) {
+		for(Defination def : rule.getDefinations()) {
+			String dataType = def.getDataType();
+			String[] order = propertyOrders.get(dataType);
+			Map<String, Object> knownTypes = propertyTypes.get(dataType);
+			if (knownTypes == null) {
+				knownTypes = new HashMap<String, Object>();
+				propertyTypes.put(dataType, knownTypes);
 			}
-			for(Defination def : rule.getDefinations()) {
-				if(admin.getConfiguration().isEventTypeExists(def.getDataType())) {
-					admin.getConfiguration().updateMapEventType(def.getDataType(), def.getFieldMap());
-					logger.info("Update rule definaton to Esper, defination={}", def);
-				} else {
-					admin.getConfiguration().addEventType(def.getDataType(), def.getFieldMap());
-					logger.info("Add rule definaton to Esper, defination={}", def);
+			List<String> newNames = new ArrayList<String>();
+			for (Map.Entry<String, Object> field : def.getFieldMap().entrySet()) {
+				if (!knownTypes.containsKey(field.getKey())) {
+					newNames.add(field.getKey());
+				} else if (!String.valueOf(knownTypes.get(field.getKey())).equals(String.valueOf(field.getValue()))) {
+					logger.warn("Esper cannot change the type of a property, kept {}, dataType={}, property={}, newType={}",
+							knownTypes.get(field.getKey()), dataType, field.getKey(), field.getValue());
 				}
 			}
-			EPStatement state = admin.createEPL(rule.getStatement(), rule.getStatementId());
-			logger.info("Create EPL to Esper, rule={}", rule);
-			state.addListener(new UpdateListener() {
-				@SuppressWarnings("unchecked")
-				@Override
-				public void update(EventBean[] newEvents, EventBean[] oldEvents) {
-					if (newEvents != null && newEvents.length > 0) {
-						List<Map<String, Object>> events = new LinkedList<>();
-						for(EventBean event : newEvents) {
-							events.add((Map<String, Object>)event.getUnderlying());
-						}
-						ResultEvent resultEvent = new ResultEvent();
-						resultEvent.setProcessorType(rule.getProcessorType());
-						resultEvent.setStatementId(rule.getStatementId());
-						resultEvent.setResult(events);
-						try {
-							resultQueue.put(resultEvent);
-						} catch (InterruptedException e) {
-							// NOOP
+			if (order != null && newNames.isEmpty()) {
+				continue;
+			}
+			String[] names = newNames.toArray(new String[newNames.size()]);
+			Object[] types = new Object[names.length];
+			for (int i = 0; i < names.length; i++) {
+				types[i] = def.getFieldMap().get(names[i]);
+			}
+			// object-array types can only be extended, new properties go to the end
+			for (EsperShard shard : shards) {
+				shard.addProperties(dataType, names, types);
+			}
+			for (int i = 0; i < names.length; i++) {
+				knownTypes.put(names[i], types[i]);
+			}
+			String[] newOrder = names;
+			if (order != null) {
+				newOrder = Arrays.copyOf(order, order.length + names.length);
+				System.arraycopy(names, 0, newOrder, order.length, names.length);
+			}
+			propertyOrders.put(dataType, newOrder);
+			logger.info("{} rule definaton to Esper, defination={}", order == null ? "Add" : "Update", def);
+		}
+	}
+	
+	private void createStatement(EPAdministrator admin, final Rule rule) {
+		EPStatement state = admin.createEPL(rule.getStatement(), rule.getStatementId());
+		logger.info("Create EPL to Esper, rule={}", rule);
+		final String[] propertyNames = state.getEventType().getPropertyNames();
+		state.addListener(new UpdateListener() {
+			@Override
+			public void update(EventBean[] newEvents, EventBean[] oldEvents) {
+				if (newEvents != null && newEvents.length > 0) {
+					List<Map<String, Object>> events = new ArrayList<>(newEvents.length);
+					for(EventBean event : newEvents) {
+						Map<String, Object> result = new HashMap<String, Object>(propertyNames.length * 4 / 3 + 1);
+						for (String propertyName : propertyNames) {
+							result.put(propertyName, event.get(propertyName));
 						}
+						events.add(result);
 					}
+					ResultEvent resultEvent = new ResultEvent();
+					resultEvent.setProcessorType(rule.getProcessorType());
+					resultEvent.setStatementId(rule.getStatementId());
+					resultEvent.setResult(events);
+					emit(resultEvent);
 				}
-			});
-		}
+			}
+		});
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.espertech.esper.client.Configuration;
+import com.espertech.esper.client.ConfigurationOperations;
+import com.espertech.esper.client.EPAdministrator;
+import com.espertech.esper.client.EPRuntime;
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.github.zjzcn.ceper.event.Credit;
+
+/**
+ * An isolated Esper engine fed by its own worker thread through a bounded queue.
+ * Only the worker thread sends events into the engine. The credit of a queued event
+ * is released once the engine evaluated it, including the listeners publishing its
+ * results, so a full shard or a blocking result bus holds back the source.
+ * 
+ * @author zjzcn
+ *
+ */
+public class EsperShard {
+
+	private static final Logger logger = LoggerFactory.getLogger(EsperShard.class);
+	
+	private final String name;
+	
+	private final EPServiceProvider provider;
+	
+	private final BlockingQueue<Entry> queue;
+	
+	private final Thread worker;
+	
+	private volatile boolean running;
+	
+	// property count of each object-array type, worker thread only once started
+	private final Map<String, Integer> propertyCounts = new HashMap<String, Integer>();
+	
+	public EsperShard(String name, int queueCapacity) {
+		this.name = name;
+		Configuration configuration = new Configuration();
+		// a single sending thread per engine, no need to keep dispatch order across threads
+		configuration.getEngineDefaults().getThreading().setListenerDispatchPreserveOrder(false);
+		configuration.getEngineDefaults().getThreading().setInsertIntoDispatchPreserveOrder(false);
+		this.provider = EPServiceProviderManager.getProvider(name, configuration);
+		this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "EsperShard-" + name);
+		this.worker.setDaemon(true);
+	}
+	
+	public void start() {
+		running = true;
+		worker.start();
+		logger.info("EsperShard started, name={}", name);
+	}
+	
+	public void stop() {
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		provider.destroy();
+		logger.info("EsperShard stopped, name={}", name);
+	}
+	
+	/**
+	 * Sends an object-array event, blocks while the shard queue is full.
+	 * 
+	 * @param credit released after the event was evaluated, may be null
+	 */
+	public void send(String dataType, Object[] values, Credit credit) {
+		try {
+			queue.put(new Entry(dataType, values, credit));
+		} catch (InterruptedException e) {
+			release(credit);
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Adds properties to the end of the object-array type of the dataType, or creates
+	 * it. Runs on the worker thread after the events queued before, and waits for it.
+	 * Queued events converted for fewer properties are padded with nulls.
+	 */
+	public void addProperties(final String dataType, final String[] names, final Object[] types) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				ConfigurationOperations configuration = provider.getEPAdministrator().getConfiguration();
+				Integer count = propertyCounts.get(dataType);
+				if (count == null) {
+					configuration.addEventType(dataType, names, types);
+					count = 0;
+				} else {
+					configuration.updateObjectArrayEventType(dataType, names, types);
+				}
+				propertyCounts.put(dataType, count + names.length);
+			}
+		});
+	}
+	
+	private void execute(Runnable runnable) {
+		FutureTask<Void> task = new FutureTask<Void>(runnable, null);
+		if (!running) {
+			// not started yet, no event is sent
+			task.run();
+		} else {
+			try {
+				queue.put(new Entry(task));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while updating EsperShard " + name, e);
+			}
+		}
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while updating EsperShard " + name, e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to update EsperShard " + name, e.getCause());
+		}
+	}
+	
+	public EPAdministrator getAdministrator() {
+		return provider.getEPAdministrator();
+	}
+	
+	public int getQueueSize() {
+		return queue.size();
+	}
+	
+	private void work() {
+		EPRuntime runtime = provider.getEPRuntime();
+		while (running) {
+			Entry entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (entry.task != null) {
+				entry.task.run();
+				continue;
+			}
+			try {
+				Object[] values = entry.values;
+				Integer count = propertyCounts.get(entry.dataType);
+				if (count != null && values.length < count) {
+					values = Arrays.copyOf(values, count);
+				}
+				runtime.sendEvent(values, entry.dataType);
+			} catch (Exception e) {
+				logger.error("EsperShard failed to process event, shard=" + name + ", dataType=" + entry.dataType, e);
+			} finally {
+				release(entry.credit);
+			}
+		}
+		// not evaluated, but their source must not wait for them
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			if (entry.task != null) {
+				entry.task.cancel(false);
+			}
+			release(entry.credit);
+		}
+	}
+	
+	private static void release(Credit credit) {
+		if (credit != null) {
+			credit.release();
+		}
+	}
+	
+	private static final class Entry {
+		
+		final String dataType;
+		
+		final Object[] values;
+		
+		final Credit credit;
+		
+		// a type update instead of an event
+		final FutureTask<Void> task;
+		
+		Entry(String dataType, Object[] values, Credit credit) {
+			this.dataType = dataType;
+			this.values = values;
+			this.credit = credit;
+			this.task = null;
+		}
+		
+		Entry(FutureTask<Void> task) {
+			this.dataType = null;
+			this.values = null;
+			this.credit = null;
+			this.task = task;
+		}
+	}
+}
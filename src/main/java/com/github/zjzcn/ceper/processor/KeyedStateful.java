@@ -0,0 +1,32 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.io.IOException;
+
+/**
+ * A processor whose state is partitioned by the hashTag of the events, so the state
+ * of the hashTags that move to another node on a ring change can follow them, see
+ * {@link com.github.zjzcn.ceper.router.StateHandoff}.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface KeyedStateful {
+
+	/**
+	 * The state of the hashTags accepted by the filter, null if there is none.
+	 */
+	byte[] exportState(HashTagFilter filter) throws IOException;
+
+	/**
+	 * Adds a state exported by the same processor on another node, it replaces or,
+	 * where the state is mergeable, merges with the local state of the same keys.
+	 */
+	void importState(byte[] state) throws IOException;
+
+	interface HashTagFilter {
+
+		boolean accept(String hashTag);
+
+	}
+
+}
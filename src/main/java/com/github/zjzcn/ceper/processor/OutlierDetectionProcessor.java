@@ -1,49 +1,503 @@
 package com.github.zjzcn.ceper.processor;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.common.Constants;
 import com.github.zjzcn.ceper.event.ResultEvent;
 import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.utils.Assert;
+import com.github.zjzcn.ceper.utils.HashUtils;
+import com.github.zjzcn.ceper.utils.LongIntHashMap;
 import com.typesafe.config.Config;
 
-public class OutlierDetectionProcessor extends AbstractProcessor {
-	
-	private BlockingQueue<SourceEvent> queue;
-	
+/**
+ * Streaming outlier detection per series, a series being hashTag + dataType + field.
+ *
+ * Every numeric field value updates, in O(1): Welford mean/variance, EWMA
+ * mean/variance and a streaming median/MAD approximation. Before the update the
+ * value is scored against the series by the configured method:
+ *
+ * <pre>
+ * 	zscore  (x - mean) / stddev
+ * 	ewma    (x - ewma) / ewma stddev
+ * 	mad     0.6745 * (x - median) / mad
+ * </pre>
+ *
+ * and emitted as an outlier when |score| > threshold after min_samples values.
+ *
+ * The state of all series is kept in striped primitive arrays indexed through
+ * open addressing long maps keyed by the 64-bit series hash, no per series objects.
+ * A series without values for series_idle_ms is dropped, and beyond max_series the
+ * least recently updated series of a stripe makes room for a new one.
+ * The state is snapshotted, see {@link SnapshotManager}, and copied to the new owner
+ * of a hashTag on a ring change, see {@link KeyedStateful}.
+ *
+ * @author zjzcn
+ *
+ */
+public class OutlierDetectionProcessor extends AbstractProcessor implements Snapshotable, KeyedStateful {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final int STRIPES = 64;
+
+	private static final double MAD_SCALE = 0.6745;
+
+	private String method = "mad";
+
+	private double threshold = 3.5;
+
+	private double ewmaAlpha = 0.01;
+
+	private int minSamples = 30;
+
+	// null: all numeric fields
+	private Set<String> fields;
+
+	// null: all data types
+	private Set<String> dataTypes;
+
+	private int maxSeries = Constants.DEFAULT_OUTLIER_MAX_SERIES;
+
+	// 0: never evicted for idleness
+	private long seriesIdleMs = Constants.DEFAULT_OUTLIER_SERIES_IDLE_MS;
+
+	private Stripe[] stripes;
+
+	private ScheduledExecutorService evictExecutor;
+
 	@Override
 	public String getProcessorType() {
 		return "outlier";
 	}
-	
+
 	@Override
 	public void config(Config config) {
-		
+		configResultBus(config);
+		if (config.hasPath("method")) {
+			method = config.getString("method");
+			if (!Arrays.asList("zscore", "ewma", "mad").contains(method)) {
+				throw new IllegalArgumentException("Outlier processor config item[method] not supported: " + method);
+			}
+		}
+		if (config.hasPath("threshold")) {
+			threshold = config.getDouble("threshold");
+		}
+		if (config.hasPath("ewma_alpha")) {
+			ewmaAlpha = config.getDouble("ewma_alpha");
+		}
+		if (config.hasPath("min_samples")) {
+			minSamples = config.getInt("min_samples");
+		}
+		if (config.hasPath("fields")) {
+			fields = new HashSet<String>(config.getStringList("fields"));
+		}
+		if (config.hasPath("data_types")) {
+			dataTypes = new HashSet<String>(config.getStringList("data_types"));
+		}
+		if (config.hasPath("max_series")) {
+			maxSeries = config.getInt("max_series");
+			Assert.isTrue(maxSeries > 0, "Outlier processor config item[max_series] must be positive.");
+		}
+		if (config.hasPath("series_idle_ms")) {
+			seriesIdleMs = config.getLong("series_idle_ms");
+		}
 	}
 
 	@Override
 	public void start() {
-		
+		stripes = new Stripe[STRIPES];
+		int stripeMaxSeries = (maxSeries + STRIPES - 1) / STRIPES;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(ewmaAlpha, stripeMaxSeries);
+		}
+		if (seriesIdleMs > 0) {
+			evictExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "outlier-evict-" + getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long interval = Math.min(seriesIdleMs, 60000);
+			evictExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						evictIdle();
+					} catch (Exception e) {
+						logger.error("Error while evicting idle series, processor=" + getName(), e);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		SnapshotManager.register(getName(), this);
+		logger.info("Started OutlierDetectionProcessor, name={}, method={}, threshold={}, maxSeries={}, seriesIdleMs={}.",
+				getName(), method, threshold, maxSeries, seriesIdleMs);
 	}
 
 	@Override
 	public void stop() {
-		
+		if (evictExecutor != null) {
+			evictExecutor.shutdown();
+		}
+	}
+
+	private void evictIdle() {
+		long before = System.currentTimeMillis() - seriesIdleMs;
+		int evicted = 0;
+		for (Stripe stripe : stripes) {
+			evicted += stripe.evictIdle(before);
+		}
+		if (evicted > 0) {
+			logger.info("Evicted idle series, processor={}, evicted={}.", getName(), evicted);
+		}
 	}
 
 	@Override
-	public void process(SourceEvent event) {
-		try {
-			queue.put(event);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	public byte[] snapshot() throws IOException {
+		return writeState(null);
+	}
+
+	@Override
+	public void restore(byte[] state) throws IOException {
+		readState(state);
+	}
+
+	/**
+	 * The exported series stay here too, they are overwritten if the hashTag comes back.
+	 */
+	@Override
+	public byte[] exportState(HashTagFilter filter) throws IOException {
+		return writeState(filter);
+	}
+
+	@Override
+	public void importState(byte[] state) throws IOException {
+		readState(state);
+	}
+
+	private byte[] writeState(HashTagFilter filter) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (Stripe stripe : stripes) {
+			stripe.writeTo(out, filter);
+		}
+		out.writeBoolean(false);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void readState(byte[] state) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+		while (in.readBoolean()) {
+			long key = in.readLong();
+			String hashTag = in.readUTF();
+			stripe(key).readSeries(key, hashTag, in);
 		}
 	}
 
+	private Stripe stripe(long key) {
+		return stripes[(int) (key >>> 58) & (STRIPES - 1)];
+	}
+
 	@Override
-	public ResultEvent getResult() {
-		// TODO Auto-generated method stub
-		return null;
+	public void process(SourceEvent event) {
+		String dataType = event.getDataType();
+		Map<String, Object> data = event.getData();
+		if (data == null || (dataTypes != null && !dataTypes.contains(dataType))) {
+			return;
+		}
+		String hashTag = event.getHashTag() != null ? event.getHashTag() : "";
+		long seriesHash = HashUtils.combine(HashUtils.hash64(dataType), HashUtils.hash64(hashTag));
+		double[] stats = new double[Stripe.STAT_COUNT];
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Object> entry : data.entrySet()) {
+			String field = entry.getKey();
+			if (!(entry.getValue() instanceof Number) || (fields != null && !fields.contains(field))) {
+				continue;
+			}
+			double value = ((Number) entry.getValue()).doubleValue();
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				continue;
+			}
+			long key = HashUtils.combine(seriesHash, HashUtils.hash64(field));
+			long count = stripe(key).update(key, hashTag, value, stats, now);
+			if (count < minSamples) {
+				continue;
+			}
+			double score = score(value, stats);
+			if (Math.abs(score) > threshold) {
+				emit(buildResult(event, field, value, score, count, stats));
+			}
+		}
+	}
+
+	private double score(double value, double[] stats) {
+		double scale;
+		double center;
+		switch (method) {
+		case "zscore":
+			center = stats[Stripe.MEAN];
+			scale = stats[Stripe.STDDEV];
+			break;
+		case "ewma":
+			center = stats[Stripe.EWMA];
+			scale = stats[Stripe.EWMA_STDDEV];
+			break;
+		default:
+			center = stats[Stripe.MEDIAN];
+			scale = stats[Stripe.MAD] / MAD_SCALE;
+			break;
+		}
+		if (scale <= 0) {
+			return value == center ? 0 : Double.POSITIVE_INFINITY;
+		}
+		return (value - center) / scale;
+	}
+
+	private ResultEvent buildResult(SourceEvent event, String field, double value, double score, long count, double[] stats) {
+		Map<String, Object> result = new HashMap<String, Object>(24);
+		result.put("dataType", event.getDataType());
+		result.put("hashTag", event.getHashTag());
+		result.put("field", field);
+		result.put("value", value);
+		result.put("score", score);
+		result.put("method", method);
+		result.put("count", count);
+		result.put("mean", stats[Stripe.MEAN]);
+		result.put("stddev", stats[Stripe.STDDEV]);
+		result.put("ewma", stats[Stripe.EWMA]);
+		result.put("ewmaStddev", stats[Stripe.EWMA_STDDEV]);
+		result.put("median", stats[Stripe.MEDIAN]);
+		result.put("mad", stats[Stripe.MAD]);
+		result.put("eventTimestamp", event.getTimestamp());
+
+		ResultEvent resultEvent = new ResultEvent();
+		resultEvent.setProcessorType(getProcessorType());
+		resultEvent.setStatementId(event.getDataType() + "." + field);
+		resultEvent.setResult(result);
+		return resultEvent;
+	}
+
+	/**
+	 * The series of one stripe, a series is a slot in the parallel arrays.
+	 */
+	private static final class Stripe {
+
+		static final int STAT_COUNT = 6;
+		static final int MEAN = 0;
+		static final int STDDEV = 1;
+		static final int EWMA = 2;
+		static final int EWMA_STDDEV = 3;
+		static final int MEDIAN = 4;
+		static final int MAD = 5;
+
+		private final double alpha;
+
+		private final int maxSeries;
+
+		private final LongIntHashMap slots = new LongIntHashMap(1024);
+
+		private long[] keys = new long[1024];
+		private String[] hashTags = new String[1024];
+		private long[] counts = new long[1024];
+		private double[] means = new double[1024];
+		private double[] m2s = new double[1024];
+		private double[] ewmas = new double[1024];
+		private double[] ewmaVars = new double[1024];
+		private double[] medians = new double[1024];
+		private double[] mads = new double[1024];
+		private long[] lastSeen = new long[1024];
+
+		Stripe(double alpha, int maxSeries) {
+			this.alpha = alpha;
+			this.maxSeries = maxSeries;
+		}
+
+		/**
+		 * Copies the statistics before this value into stats, then adds the value.
+		 *
+		 * @return the number of values seen before this one
+		 */
+		synchronized long update(long key, String hashTag, double x, double[] stats, long now) {
+			int slot = slot(key, hashTag);
+			lastSeen[slot] = now;
+			long n = counts[slot];
+			stats[MEAN] = means[slot];
+			stats[STDDEV] = n > 1 ? Math.sqrt(m2s[slot] / (n - 1)) : 0;
+			stats[EWMA] = ewmas[slot];
+			stats[EWMA_STDDEV] = Math.sqrt(ewmaVars[slot]);
+			stats[MEDIAN] = medians[slot];
+			stats[MAD] = mads[slot];
+
+			if (n == 0) {
+				counts[slot] = 1;
+				means[slot] = x;
+				ewmas[slot] = x;
+				medians[slot] = x;
+				return 0;
+			}
+			counts[slot] = n + 1;
+
+			// Welford
+			double delta = x - means[slot];
+			means[slot] += delta / (n + 1);
+			m2s[slot] += delta * (x - means[slot]);
+
+			// 1/n until the series has 1/alpha values, so young series are not dominated by the first one
+			double rate = Math.max(alpha, 1.0 / (n + 1));
+
+			// EWMA mean and variance
+			double ewmaDelta = x - ewmas[slot];
+			ewmas[slot] += rate * ewmaDelta;
+			ewmaVars[slot] = (1 - rate) * (ewmaVars[slot] + rate * ewmaDelta * ewmaDelta);
+
+			// streaming median/MAD: move towards x by a step scaled to the current MAD,
+			// so a single outlier moves them no further than a normal value
+			double step = rate * mads[slot];
+			if (step == 0) {
+				step = rate * Math.abs(x - medians[slot]);
+			}
+			medians[slot] += step * Math.signum(x - medians[slot]);
+			mads[slot] += step * Math.signum(Math.abs(x - medians[slot]) - mads[slot]);
+			if (mads[slot] < 0) {
+				mads[slot] = 0;
+			}
+			return n;
+		}
+
+		private int slot(long key, String hashTag) {
+			int slot = slots.get(key, -1);
+			if (slot < 0) {
+				if (slots.size() >= maxSeries) {
+					remove(leastRecent());
+				}
+				slot = slots.size();
+				ensureCapacity(slot + 1);
+				slots.put(key, slot);
+				keys[slot] = key;
+				hashTags[slot] = hashTag;
+			}
+			return slot;
+		}
+
+		/**
+		 * @return the number of series not updated since before
+		 */
+		synchronized int evictIdle(long before) {
+			int evicted = 0;
+			for (int slot = slots.size() - 1; slot >= 0; slot--) {
+				if (lastSeen[slot] < before) {
+					remove(slot);
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		private int leastRecent() {
+			int least = 0;
+			for (int slot = 1, size = slots.size(); slot < size; slot++) {
+				if (lastSeen[slot] < lastSeen[least]) {
+					least = slot;
+				}
+			}
+			return least;
+		}
+
+		// the last series moves into the slot, the slots stay dense
+		private void remove(int slot) {
+			slots.remove(keys[slot], -1);
+			int last = slots.size();
+			if (slot != last) {
+				keys[slot] = keys[last];
+				hashTags[slot] = hashTags[last];
+				counts[slot] = counts[last];
+				means[slot] = means[last];
+				m2s[slot] = m2s[last];
+				ewmas[slot] = ewmas[last];
+				ewmaVars[slot] = ewmaVars[last];
+				medians[slot] = medians[last];
+				mads[slot] = mads[last];
+				lastSeen[slot] = lastSeen[last];
+				slots.put(keys[slot], slot);
+			}
+			hashTags[last] = null;
+			counts[last] = 0;
+			means[last] = 0;
+			m2s[last] = 0;
+			ewmas[last] = 0;
+			ewmaVars[last] = 0;
+			medians[last] = 0;
+			mads[last] = 0;
+		}
+
+		// a series: true key hashTag count mean m2 ewma ewmaVar median mad
+		synchronized void writeTo(DataOutputStream out, HashTagFilter filter) throws IOException {
+			for (int slot = 0, size = slots.size(); slot < size; slot++) {
+				if (filter != null && !filter.accept(hashTags[slot])) {
+					continue;
+				}
+				out.writeBoolean(true);
+				out.writeLong(keys[slot]);
+				out.writeUTF(hashTags[slot]);
+				out.writeLong(counts[slot]);
+				out.writeDouble(means[slot]);
+				out.writeDouble(m2s[slot]);
+				out.writeDouble(ewmas[slot]);
+				out.writeDouble(ewmaVars[slot]);
+				out.writeDouble(medians[slot]);
+				out.writeDouble(mads[slot]);
+			}
+		}
+
+		synchronized void readSeries(long key, String hashTag, DataInputStream in) throws IOException {
+			int slot = slot(key, hashTag);
+			// restored series count as just seen
+			lastSeen[slot] = System.currentTimeMillis();
+			counts[slot] = in.readLong();
+			means[slot] = in.readDouble();
+			m2s[slot] = in.readDouble();
+			ewmas[slot] = in.readDouble();
+			ewmaVars[slot] = in.readDouble();
+			medians[slot] = in.readDouble();
+			mads[slot] = in.readDouble();
+		}
+
+		private void ensureCapacity(int size) {
+			if (size <= counts.length) {
+				return;
+			}
+			int capacity = counts.length << 1;
+			keys = Arrays.copyOf(keys, capacity);
+			hashTags = Arrays.copyOf(hashTags, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			means = Arrays.copyOf(means, capacity);
+			m2s = Arrays.copyOf(m2s, capacity);
+			ewmas = Arrays.copyOf(ewmas, capacity);
+			ewmaVars = Arrays.copyOf(ewmaVars, capacity);
+			medians = Arrays.copyOf(medians, capacity);
+			mads = Arrays.copyOf(mads, capacity);
+			lastSeen = Arrays.copyOf(lastSeen, capacity);
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.processor.predicate.CompiledStatement;
+import com.github.zjzcn.ceper.processor.predicate.PredicateParser;
+import com.github.zjzcn.ceper.rule.Rule;
+import com.github.zjzcn.ceper.rule.RuleListener;
+import com.github.zjzcn.ceper.rule.RuleManager;
+import com.typesafe.config.Config;
+
+/**
+ * Fast path for filter rules, "select ... from dataType where ...", without Esper.
+ * The statements of the rules with processorType "predicate" are compiled to
+ * predicate trees (see {@link PredicateParser}) and indexed by dataType, an event
+ * is only tested against the rules of its dataType, directly on SourceEvent.data.
+ * 
+ * A match is emitted like an Esper result: a list with the selected fields as one row.
+ * 
+ * @author zjzcn
+ *
+ */
+public class PredicateProcessor extends AbstractProcessor {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// dataType -> rules, replaced as a whole on rule changes
+	private volatile Map<String, CompiledRule[]> rulesByDataType = Collections.emptyMap();
+
+	private RuleListener ruleListener;
+
+	@Override
+	public String getProcessorType() {
+		return "predicate";
+	}
+
+	@Override
+	public void config(Config config) {
+		configResultBus(config);
+	}
+
+	@Override
+	public void start() {
+		ruleListener = RuleManager.subscribe(new RuleListener() {
+			@Override
+			public void childhanged(Set<Rule> rules) {
+				applyRules(rules);
+			}
+		});
+		applyRules(RuleManager.getRules());
+		logger.info("Started PredicateProcessor, name={}.", getName());
+	}
+
+	@Override
+	public void stop() {
+		if (ruleListener != null) {
+			RuleManager.unsubscribe(ruleListener);
+		}
+	}
+
+	@Override
+	public void process(SourceEvent event) {
+		CompiledRule[] rules = rulesByDataType.get(event.getDataType());
+		Map<String, Object> data = event.getData();
+		if (rules == null || data == null) {
+			return;
+		}
+		for (CompiledRule rule : rules) {
+			if (rule.statement.test(data)) {
+				List<Map<String, Object>> events = new ArrayList<Map<String, Object>>(1);
+				events.add(rule.statement.select(data));
+				ResultEvent resultEvent = new ResultEvent();
+				resultEvent.setProcessorType(rule.processorType);
+				resultEvent.setStatementId(rule.statementId);
+				resultEvent.setResult(events);
+				emit(resultEvent);
+			}
+		}
+	}
+
+	private synchronized void applyRules(Set<Rule> rules) {
+		Map<String, List<CompiledRule>> grouped = new HashMap<String, List<CompiledRule>>();
+		int count = 0;
+		for (Rule rule : rules) {
+			if (!getProcessorType().equals(rule.getProcessorType())) {
+				continue;
+			}
+			CompiledStatement statement;
+			try {
+				statement = PredicateParser.parseStatement(rule.getStatement());
+			} catch (Exception e) {
+				logger.error("Compile predicate rule failed, rule=" + rule, e);
+				continue;
+			}
+			List<CompiledRule> list = grouped.get(statement.getDataType());
+			if (list == null) {
+				list = new ArrayList<CompiledRule>();
+				grouped.put(statement.getDataType(), list);
+			}
+			list.add(new CompiledRule(rule.getStatementId(), rule.getProcessorType(), statement));
+			count++;
+		}
+		Map<String, CompiledRule[]> index = new HashMap<String, CompiledRule[]>(grouped.size() * 4 / 3 + 1);
+		for (Map.Entry<String, List<CompiledRule>> entry : grouped.entrySet()) {
+			index.put(entry.getKey(), entry.getValue().toArray(new CompiledRule[entry.getValue().size()]));
+		}
+		rulesByDataType = index;
+		logger.info("Applied predicate rules, name={}, rules={}, dataTypes={}.", getName(), count, index.size());
+	}
+
+	private static final class CompiledRule {
+
+		final String statementId;
+
+		final String processorType;
+
+		final CompiledStatement statement;
+
+		CompiledRule(String statementId, String processorType, CompiledStatement statement) {
+			this.statementId = statementId;
+			this.processorType = processorType;
+			this.statement = statement;
+		}
+	}
+
+}
@@ -1,6 +1,5 @@
 package com.github.zjzcn.ceper.processor;
 
-import com.github.zjzcn.ceper.event.ResultEvent;
 import com.github.zjzcn.ceper.event.SourceEvent;
 import com.typesafe.config.Config;
 
@@ -14,7 +13,13 @@ public interface Processor {
 	
 	void process(SourceEvent event);
 	
-	ResultEvent getResult();
+	/**
+	 * Every subscriber receives all results emitted after it subscribed, the signal
+	 * is raised whenever a result is emitted.
+	 */
+	ResultSubscription subscribe(String subscriber, ResultSignal signal);
+	
+	void unsubscribe(ResultSubscription subscription);
 
 	void setName(String name);
 
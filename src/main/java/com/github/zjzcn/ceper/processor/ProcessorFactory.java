@@ -22,6 +22,15 @@ public class ProcessorFactory {
 			case "outlier":
 				processor = new OutlierDetectionProcessor();
 				break;
+			case "sketch":
+				processor = new SketchProcessor();
+				break;
+			case "predicate":
+				processor = new PredicateProcessor();
+				break;
+			case "window":
+				processor = new WindowProcessor();
+				break;
 			default:
 				processor = (Processor) ClassUtils.newInstance(type);
 				break;
@@ -0,0 +1,201 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+import com.github.zjzcn.ceper.monitor.Metric;
+import com.github.zjzcn.ceper.monitor.MetricCollector;
+import com.github.zjzcn.ceper.utils.Assert;
+
+/**
+ * Broadcasts the results of a processor to all subscribers (sinks).
+ * 
+ * One shared ring of results, every subscriber reads it through its own cursor,
+ * so each sink receives every result without copying the queue. Publishing is
+ * lock-free: producers claim a sequence with CAS and mark the slot published.
+ * A slot is reused only when all cursors passed it; if a subscriber lags a full
+ * ring behind, the overflow policy decides:
+ * 
+ * <pre>
+ * 	BLOCK        the producer waits for the slowest subscriber
+ * 	DROP_OLDEST  the laggard's cursor is moved forward, it loses those results
+ * 	SPILL        as DROP_OLDEST, but the results move into the laggard's own
+ * 	             overflow queue, which it reads before the ring
+ * </pre>
+ * 
+ * Other subscribers are never slowed down by DROP_OLDEST or SPILL.
+ * 
+ * Only BLOCK holds the source back: the publishing processor waits and keeps the
+ * credits of its events (see {@link com.github.zjzcn.ceper.event.Credit}), so the
+ * source pauses. With DROP_OLDEST a slow sink loses results, with SPILL the
+ * overflow queue of a slow sink grows without bound.
+ * 
+ * @author zjzcn
+ *
+ */
+public class ResultBus {
+
+	public enum OverflowPolicy {
+		BLOCK, DROP_OLDEST, SPILL
+	}
+	
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	
+	private final String name;
+	
+	private final int mask;
+	
+	private final AtomicReferenceArray<ResultEvent> slots;
+	
+	// sequence last published into each slot
+	private final AtomicLongArray published;
+	
+	// next sequence to claim
+	private final AtomicLong claimed = new AtomicLong();
+	
+	private final OverflowPolicy overflowPolicy;
+	
+	private final List<ResultSubscription> subscriptions = new CopyOnWriteArrayList<ResultSubscription>();
+	
+	public ResultBus(String name, int capacity, OverflowPolicy overflowPolicy) {
+		Assert.isTrue(capacity > 0, "capacity must be positive");
+		this.name = name;
+		this.overflowPolicy = overflowPolicy;
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		slots = new AtomicReferenceArray<ResultEvent>(size);
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+		new MetricCollector() {
+			@Override
+			public List<Metric> collect() {
+				return collectMetrics();
+			}
+		};
+	}
+	
+	public static OverflowPolicy parsePolicy(String policy) {
+		try {
+			return OverflowPolicy.valueOf(policy.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Not supported overflow policy: " + policy);
+		}
+	}
+	
+	/**
+	 * The subscriber receives every result published from now on.
+	 */
+	public ResultSubscription subscribe(String subscriber, ResultSignal signal) {
+		ResultSubscription subscription = new ResultSubscription(this, subscriber, signal, claimed.get());
+		subscriptions.add(subscription);
+		return subscription;
+	}
+	
+	public void unsubscribe(ResultSubscription subscription) {
+		subscriptions.remove(subscription);
+	}
+	
+	/**
+	 * Results published while nobody subscribed are discarded.
+	 */
+	public void publish(ResultEvent event) {
+		long sequence;
+		while (true) {
+			// read the claim before the cursors, a subscriber added later starts at or after it
+			long current = claimed.get();
+			long wrapPoint = current - capacity();
+			if (wrapPoint >= 0 && wrapPoint >= minCursor()) {
+				if (!makeRoom(wrapPoint)) {
+					return;
+				}
+				continue;
+			}
+			if (claimed.compareAndSet(current, current + 1)) {
+				sequence = current;
+				break;
+			}
+		}
+		int index = (int) sequence & mask;
+		slots.set(index, event);
+		published.set(index, sequence);
+		for (ResultSubscription subscription : subscriptions) {
+			subscription.signal();
+		}
+	}
+	
+	private boolean makeRoom(long wrapPoint) {
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+		case SPILL:
+			for (ResultSubscription subscription : subscriptions) {
+				subscription.skipTo(wrapPoint + 1, overflowPolicy == OverflowPolicy.SPILL);
+			}
+			return true;
+		default:
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			return true;
+		}
+	}
+	
+	private long minCursor() {
+		long min = Long.MAX_VALUE;
+		for (ResultSubscription subscription : subscriptions) {
+			min = Math.min(min, subscription.cursor());
+		}
+		return min;
+	}
+	
+	/**
+	 * @return the result published with the sequence, null if the slot does not
+	 *         hold it (not yet published or already reused)
+	 */
+	ResultEvent get(long sequence) {
+		int index = (int) sequence & mask;
+		if (published.get(index) != sequence) {
+			return null;
+		}
+		return slots.get(index);
+	}
+	
+	long claimed() {
+		return claimed.get();
+	}
+	
+	public int capacity() {
+		return mask + 1;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	private List<Metric> collectMetrics() {
+		String prefix = "processor." + name + ".result_bus.";
+		List<Metric> metrics = new ArrayList<Metric>();
+		metrics.add(new Metric(prefix + "capacity", String.valueOf(capacity())));
+		metrics.add(new Metric(prefix + "published", String.valueOf(claimed.get())));
+		for (ResultSubscription subscription : subscriptions) {
+			String subPrefix = prefix + subscription.getSubscriber() + ".";
+			metrics.add(new Metric(subPrefix + "lag", String.valueOf(subscription.lag())));
+			metrics.add(new Metric(subPrefix + "dropped", String.valueOf(subscription.getDroppedCount())));
+			metrics.add(new Metric(subPrefix + "spilled", String.valueOf(subscription.getSpilledCount())));
+			metrics.add(new Metric(subPrefix + "overflow_size", String.valueOf(subscription.getOverflowSize())));
+		}
+		return metrics;
+	}
+}
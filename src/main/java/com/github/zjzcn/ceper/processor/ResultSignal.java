@@ -0,0 +1,71 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wakes a consumer, e.g. a SinkRunner, when any of its processors emitted a result.
+ * 
+ * <pre>
+ * 	long version = signal.version();
+ * 	if (drain(...) == 0) {
+ * 		signal.await(version, timeout, unit);
+ * 	}
+ * </pre>
+ * 
+ * Signals raised after version() was read are never missed. Emitting is lock-free
+ * unless a consumer is waiting.
+ * 
+ * @author zjzcn
+ *
+ */
+public class ResultSignal {
+
+	private final AtomicLong version = new AtomicLong();
+	
+	private final AtomicInteger waiters = new AtomicInteger();
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition changed = lock.newCondition();
+	
+	public long version() {
+		return version.get();
+	}
+	
+	public void signal() {
+		version.incrementAndGet();
+		if (waiters.get() == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until a signal was raised after the given version, or the timeout elapsed.
+	 */
+	public void await(long lastVersion, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			waiters.incrementAndGet();
+			try {
+				while (version.get() == lastVersion && nanos > 0) {
+					nanos = changed.awaitNanos(nanos);
+				}
+			} finally {
+				waiters.decrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+
+/**
+ * A subscriber's cursor over a {@link ResultBus}. Several threads may drain the
+ * same subscription, each result is handed to exactly one of them.
+ * 
+ * @author zjzcn
+ *
+ */
+public class ResultSubscription {
+
+	private final ResultBus bus;
+	
+	private final String subscriber;
+	
+	private final ResultSignal signal;
+	
+	// next sequence to read
+	private final AtomicLong cursor;
+	
+	// results moved off the ring by SPILL, older than anything at the cursor
+	private final Queue<ResultEvent> overflow = new ConcurrentLinkedQueue<ResultEvent>();
+	
+	private final AtomicInteger overflowSize = new AtomicInteger();
+	
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	private final AtomicLong spilledCount = new AtomicLong();
+	
+	ResultSubscription(ResultBus bus, String subscriber, ResultSignal signal, long start) {
+		this.bus = bus;
+		this.subscriber = subscriber;
+		this.signal = signal;
+		this.cursor = new AtomicLong(start);
+	}
+	
+	/**
+	 * Moves up to max results into the list without blocking.
+	 * 
+	 * @return the number of results moved
+	 */
+	public int drainTo(List<ResultEvent> results, int max) {
+		int count = 0;
+		while (count < max && overflowSize.get() > 0) {
+			ResultEvent event = overflow.poll();
+			if (event == null) {
+				break;
+			}
+			overflowSize.decrementAndGet();
+			results.add(event);
+			count++;
+		}
+		while (count < max) {
+			long start = cursor.get();
+			int base = results.size();
+			long sequence = start;
+			while (count + (sequence - start) < max) {
+				ResultEvent event = bus.get(sequence);
+				if (event == null) {
+					break;
+				}
+				results.add(event);
+				sequence++;
+			}
+			if (sequence == start) {
+				break;
+			}
+			// the slots can only be reused after the cursor passed them, so if the
+			// claim succeeds the results read above are the right ones
+			if (cursor.compareAndSet(start, sequence)) {
+				count += (int) (sequence - start);
+				break;
+			}
+			for (int i = results.size() - 1; i >= base; i--) {
+				results.remove(i);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Called by producers when this subscriber holds the slot they need.
+	 */
+	void skipTo(long sequence, boolean spill) {
+		retry:
+		while (true) {
+			long start = cursor.get();
+			if (start >= sequence) {
+				return;
+			}
+			List<ResultEvent> skipped = null;
+			if (spill) {
+				skipped = new ArrayList<ResultEvent>((int) (sequence - start));
+				for (long s = start; s < sequence; s++) {
+					ResultEvent event;
+					// claimed but not yet published by a slow producer
+					while ((event = bus.get(s)) == null) {
+						if (cursor.get() != start) {
+							continue retry;
+						}
+						Thread.yield();
+					}
+					skipped.add(event);
+				}
+			}
+			if (cursor.compareAndSet(start, sequence)) {
+				if (spill) {
+					overflow.addAll(skipped);
+					overflowSize.addAndGet(skipped.size());
+					spilledCount.addAndGet(skipped.size());
+				} else {
+					droppedCount.addAndGet(sequence - start);
+				}
+				return;
+			}
+		}
+	}
+	
+	void signal() {
+		if (signal != null) {
+			signal.signal();
+		}
+	}
+	
+	long cursor() {
+		return cursor.get();
+	}
+	
+	public long lag() {
+		return Math.max(0, bus.claimed() - cursor.get()) + overflowSize.get();
+	}
+	
+	public String getSubscriber() {
+		return subscriber;
+	}
+	
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+	
+	public int getOverflowSize() {
+		return overflowSize.get();
+	}
+}
@@ -0,0 +1,311 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.processor.sketch.KeySketches;
+import com.github.zjzcn.ceper.processor.sketch.SketchSpec;
+import com.typesafe.config.Config;
+
+/**
+ * Approximate aggregation over tumbling processing time windows: distinct counts
+ * (HyperLogLog), heavy hitters (CountMinSketch) and quantiles (KLL) per key, where
+ * the key is dataType + the group_by field (hashTag by default). Unlike an Esper
+ * window no raw event is kept, the memory of a key is fixed by the sketch sizes.
+ * 
+ * Every key emits one ResultEvent when its window closes. Grouped by hashTag a key
+ * lives on one node and the estimates are final. With group_by the events of a key
+ * are spread over the nodes by their hashTag, distinct counts and quantiles of the
+ * nodes do not add up, so each result is marked partial and also carries the
+ * serialized sketches ("sketches"): merge them with {@link KeySketches#fromBytes(byte[])}
+ * and {@link KeySketches#merge(KeySketches)} to get the estimates of the key.
+ * 
+ * The open window is snapshotted, see {@link SnapshotManager}. A restored window
+ * that ended during the downtime is emitted right away. The window emitted on stop
+ * is snapshotted after it, without its closed keys, and not restored. Grouped by hashTag, the open
+ * window of a key follows the hashTag to its new node, see {@link KeyedStateful}.
+ * 
+ * @author zjzcn
+ *
+ */
+public class SketchProcessor extends AbstractProcessor implements Snapshotable, KeyedStateful {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final long DEFAULT_WINDOW_MS = 60000;
+
+	private long windowMs = DEFAULT_WINDOW_MS;
+
+	// null: group by hashTag
+	private String groupBy;
+
+	private SketchSpec spec;
+
+	private volatile Window current;
+
+	private ScheduledExecutorService windowExecutor;
+
+	@Override
+	public String getProcessorType() {
+		return "sketch";
+	}
+
+	@Override
+	public void config(Config config) {
+		configResultBus(config);
+		if (config.hasPath("window_ms")) {
+			windowMs = config.getLong("window_ms");
+		}
+		if (config.hasPath("group_by")) {
+			groupBy = config.getString("group_by");
+		}
+		spec = SketchSpec.config(config);
+	}
+
+	@Override
+	public void start() {
+		long now = System.currentTimeMillis();
+		current = new Window(now - now % windowMs);
+		windowExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "sketch-window-" + getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// aligned to the window boundaries
+		windowExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rotate();
+				} catch (Exception e) {
+					logger.error("Error while closing sketch window, processor=" + getName(), e);
+				}
+			}
+		}, windowMs - now % windowMs, windowMs, TimeUnit.MILLISECONDS);
+		SnapshotManager.register(getName(), this);
+		logger.info("Started SketchProcessor, name={}, windowMs={}.", getName(), windowMs);
+	}
+
+	@Override
+	public void stop() {
+		if (windowExecutor != null) {
+			windowExecutor.shutdown();
+		}
+		Window window = current;
+		if (window != null) {
+			close(window, System.currentTimeMillis());
+		}
+	}
+
+	@Override
+	public void process(SourceEvent event) {
+		Map<String, Object> data = event.getData();
+		if (data == null) {
+			return;
+		}
+		String group;
+		if (groupBy == null) {
+			group = event.getHashTag();
+		} else {
+			Object value = data.get(groupBy);
+			group = value == null ? null : value.toString();
+		}
+		String key = event.getDataType() + ':' + group;
+		while (true) {
+			Window window = current;
+			KeyState state = window.keys.get(key);
+			if (state == null) {
+				KeyState newState = new KeyState(new KeySketches(event.getDataType(), group, spec));
+				state = window.keys.putIfAbsent(key, newState);
+				if (state == null) {
+					state = newState;
+				}
+			}
+			synchronized (state) {
+				if (!state.closed) {
+					state.sketches.add(data, spec);
+					return;
+				}
+			}
+			// the window closed in between, the event goes to the next one
+		}
+	}
+
+	@Override
+	public byte[] snapshot() throws IOException {
+		return writeWindow(current, null);
+	}
+
+	@Override
+	public void restore(byte[] state) throws IOException {
+		Window window = readWindow(state);
+		if (window.keys.isEmpty()) {
+			// emitted on stop, its closed keys are not snapshotted
+			return;
+		}
+		if (window.start == current.start) {
+			current = window;
+		} else {
+			close(window, window.start + windowMs);
+		}
+	}
+
+	/**
+	 * The exported keys leave the open window, a key grouped by a field is not
+	 * bound to a hashTag and stays.
+	 */
+	@Override
+	public byte[] exportState(HashTagFilter filter) throws IOException {
+		if (groupBy != null) {
+			return null;
+		}
+		return writeWindow(current, filter);
+	}
+
+	@Override
+	public void importState(byte[] state) throws IOException {
+		Window window = readWindow(state);
+		if (window.keys.isEmpty()) {
+			return;
+		}
+		if (window.start != current.start) {
+			close(window, window.start + windowMs);
+			return;
+		}
+		for (Map.Entry<String, KeyState> entry : window.keys.entrySet()) {
+			merge(entry.getKey(), entry.getValue().sketches);
+		}
+	}
+
+	private void merge(String key, KeySketches sketches) {
+		while (true) {
+			Window window = current;
+			KeyState state = window.keys.putIfAbsent(key, new KeyState(sketches));
+			if (state == null) {
+				return;
+			}
+			synchronized (state) {
+				if (!state.closed) {
+					state.sketches.merge(sketches);
+					return;
+				}
+			}
+		}
+	}
+
+	// filter: the keys to move out of the window, null to copy them all
+	private byte[] writeWindow(Window window, HashTagFilter filter) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeLong(window.start);
+		for (Map.Entry<String, KeyState> entry : window.keys.entrySet()) {
+			KeyState state = entry.getValue();
+			synchronized (state) {
+				if (state.closed) {
+					continue;
+				}
+				if (filter != null) {
+					if (!filter.accept(state.sketches.getGroup())) {
+						continue;
+					}
+					state.closed = true;
+					window.keys.remove(entry.getKey(), state);
+				}
+				out.writeBoolean(true);
+				out.writeUTF(entry.getKey());
+				out.writeObject(state.sketches);
+				// the sketches are mutable, no back references between keys
+				out.reset();
+			}
+		}
+		out.writeBoolean(false);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private Window readWindow(byte[] state) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+		Window window = new Window(in.readLong());
+		try {
+			while (in.readBoolean()) {
+				String key = in.readUTF();
+				window.keys.put(key, new KeyState((KeySketches) in.readObject()));
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Invalid sketch snapshot.", e);
+		}
+		return window;
+	}
+
+	private void rotate() {
+		Window window = current;
+		long end = window.start + windowMs;
+		long now = System.currentTimeMillis();
+		current = new Window(Math.max(end, now - now % windowMs));
+		close(window, end);
+	}
+
+	private void close(Window window, long end) {
+		for (KeyState state : window.keys.values()) {
+			Map<String, Object> result;
+			synchronized (state) {
+				state.closed = true;
+				result = state.sketches.toResult(spec);
+				if (groupBy != null) {
+					result.put("partial", true);
+					result.put("sketches", state.sketches.toBytes());
+				}
+			}
+			result.put("windowStart", window.start);
+			result.put("windowEnd", end);
+
+			ResultEvent resultEvent = new ResultEvent();
+			resultEvent.setProcessorType(getProcessorType());
+			resultEvent.setStatementId(state.sketches.getDataType());
+			resultEvent.setResult(result);
+			emit(resultEvent);
+		}
+		logger.debug("Closed sketch window, processor={}, windowStart={}, keys={}.", getName(), window.start, window.keys.size());
+	}
+
+	private static final class Window {
+
+		final long start;
+
+		final ConcurrentMap<String, KeyState> keys = new ConcurrentHashMap<String, KeyState>();
+
+		Window(long start) {
+			this.start = start;
+		}
+	}
+
+	private static final class KeyState {
+
+		final KeySketches sketches;
+
+		boolean closed;
+
+		KeyState(KeySketches sketches) {
+			this.sketches = sketches;
+		}
+	}
+
+}
@@ -0,0 +1,331 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.common.Constants;
+import com.github.zjzcn.ceper.node.Node;
+import com.github.zjzcn.ceper.node.NodeManager;
+import com.typesafe.config.Config;
+
+/**
+ * Periodic local snapshots of the {@link Snapshotable} processors together with the
+ * source offsets they have processed, so a restarted node resumes with warm windows
+ * and only replays the source after the snapshot.
+ * 
+ * Snapshots are appended to a memory mapped file, snapshot_dir/snapshot.dat:
+ * 
+ * <pre>
+ * 	record: magic(4) length(4) crc32(8) timestamp(8) payload(length)
+ * 	payload: offsetCount(4) {key(utf) offset(8)}* stateCount(4) {name(utf) length(4) state}*
+ * </pre>
+ * 
+ * A full file is replaced by a new one starting with the latest record. On start
+ * the last record with a valid crc is loaded, a torn write at the end is ignored.
+ * 
+ * The offsets are read before the states, so a state may already contain some
+ * events after its offsets, which are then applied twice on replay.
+ * 
+ * The source is only sought back when this node is alone in the cluster. With other
+ * nodes the replayed records would mostly be routed to them, which counted them
+ * already, and the events their sources routed here after the snapshot would not be
+ * replayed anyway. There the restored state just misses the downtime.
+ * Disabled when snapshot_dir is not configured.
+ * 
+ * @author zjzcn
+ *
+ */
+public class SnapshotManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(SnapshotManager.class);
+
+	private static final String FILE_NAME = "snapshot.dat";
+
+	private static final int MAGIC = 0x43534E50;
+
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	private static File dir;
+
+	private static long intervalMs = Constants.DEFAULT_SNAPSHOT_INTERVAL_MS;
+
+	private static int fileSize = Constants.DEFAULT_SNAPSHOT_FILE_SIZE;
+
+	private static final ConcurrentMap<String, Snapshotable> snapshotables = new ConcurrentHashMap<String, Snapshotable>();
+
+	// processed source offsets, e.g. sourceName/topic-partition -> next offset
+	private static final ConcurrentMap<String, Long> offsets = new ConcurrentHashMap<String, Long>();
+
+	private static final ConcurrentMap<String, Long> restoredOffsets = new ConcurrentHashMap<String, Long>();
+
+	private static final Map<String, byte[]> restoredStates = new ConcurrentHashMap<String, byte[]>();
+
+	private static ScheduledExecutorService executor;
+
+	private static FileChannel channel;
+
+	private static MappedByteBuffer buffer;
+
+	public static void config(Config config) {
+		if (config.hasPath("snapshot_dir")) {
+			dir = new File(config.getString("snapshot_dir"));
+		}
+		if (config.hasPath("snapshot_interval_ms")) {
+			intervalMs = config.getLong("snapshot_interval_ms");
+		}
+		if (config.hasPath("snapshot_file_size")) {
+			fileSize = config.getInt("snapshot_file_size");
+		}
+	}
+
+	public static boolean isEnabled() {
+		return dir != null;
+	}
+
+	/**
+	 * Loads the last snapshot, call before the processors and sources start.
+	 */
+	public static synchronized void start() {
+		if (!isEnabled()) {
+			return;
+		}
+		logger.info("Starting SnapshotManager, dir={}, intervalMs={}.", dir, intervalMs);
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new RuntimeException("Unable to create snapshot dir " + dir);
+		}
+		try {
+			File file = new File(dir, FILE_NAME);
+			int size = Math.max(fileSize, (int) file.length());
+			map(file, size);
+			load();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open snapshot file in " + dir, e);
+		}
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SnapshotManager");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					snapshot();
+				} catch (Exception e) {
+					logger.error("Error while taking snapshot.", e);
+				}
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		logger.info("Started SnapshotManager.");
+	}
+
+	/**
+	 * Takes a last snapshot, call after the sources and processors stopped.
+	 */
+	public static synchronized void stop() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+			snapshot();
+			snapshotables.clear();
+			channel.close();
+		} catch (Exception e) {
+			logger.error("Error while stoping SnapshotManager.", e);
+		}
+		executor = null;
+		logger.info("SnapshotManager stoped.");
+	}
+
+	/**
+	 * Restores the last snapshotted state of the name into the snapshotable and
+	 * includes it in the following snapshots.
+	 */
+	public static void register(String name, Snapshotable snapshotable) {
+		if (!isEnabled()) {
+			return;
+		}
+		byte[] state = restoredStates.remove(name);
+		if (state != null) {
+			try {
+				snapshotable.restore(state);
+				logger.info("Restored snapshot, name={}, bytes={}.", name, state.length);
+			} catch (Exception e) {
+				logger.error("Restore snapshot failed, starting empty, name=" + name, e);
+			}
+		}
+		snapshotables.put(name, snapshotable);
+	}
+
+	/**
+	 * Records that everything before offset has been processed.
+	 */
+	public static void updateOffset(String key, long offset) {
+		if (isEnabled()) {
+			offsets.put(key, offset);
+		}
+	}
+
+	/**
+	 * The offset to resume from after a restore, once, null if there is none or if
+	 * other nodes are running.
+	 */
+	public static Long takeRestoredOffset(String key) {
+		Long offset = restoredOffsets.remove(key);
+		if (offset == null) {
+			return null;
+		}
+		Set<Node> nodes = NodeManager.getNodes();
+		if (nodes.size() > 1) {
+			logger.warn("Not replaying {} from snapshot offset {}, other nodes are running, nodes={}.", key, offset, nodes);
+			return null;
+		}
+		offsets.put(key, offset);
+		return offset;
+	}
+
+	static synchronized void snapshot() throws IOException {
+		long start = System.currentTimeMillis();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		Map<String, Long> offsetCopy = new HashMap<String, Long>(offsets);
+		out.writeInt(offsetCopy.size());
+		for (Map.Entry<String, Long> entry : offsetCopy.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+		out.writeInt(snapshotables.size());
+		for (Map.Entry<String, Snapshotable> entry : snapshotables.entrySet()) {
+			byte[] state = entry.getValue().snapshot();
+			out.writeUTF(entry.getKey());
+			out.writeInt(state.length);
+			out.write(state);
+		}
+		out.flush();
+		append(bytes.toByteArray(), start);
+		logger.debug("Snapshot taken, bytes={}, costMs={}.", bytes.size(), System.currentTimeMillis() - start);
+	}
+
+	private static void append(byte[] payload, long timestamp) throws IOException {
+		int recordSize = HEADER_SIZE + payload.length;
+		// keep room for the 4 byte end mark after the record
+		if (buffer.remaining() < recordSize + 4) {
+			roll(payload, timestamp, recordSize + 4);
+			return;
+		}
+		write(payload, timestamp);
+	}
+
+	private static void write(byte[] payload, long timestamp) {
+		int recordSize = HEADER_SIZE + payload.length;
+		int position = buffer.position();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		buffer.position(position + 4);
+		buffer.putInt(payload.length);
+		buffer.putLong(crc.getValue());
+		buffer.putLong(timestamp);
+		buffer.put(payload);
+		buffer.putInt(0);
+		// the magic last, a record is only visible once complete
+		buffer.putInt(position, MAGIC);
+		buffer.position(position + recordSize);
+		buffer.force();
+	}
+
+	private static void roll(byte[] payload, long timestamp, int minSize) throws IOException {
+		File file = new File(dir, FILE_NAME);
+		File tmp = new File(dir, FILE_NAME + ".tmp");
+		channel.close();
+		if (tmp.exists() && !tmp.delete()) {
+			throw new IOException("Unable to delete " + tmp);
+		}
+		// the record is written and forced to the new file before it replaces the old
+		// one, so there is a valid record on disk at any time
+		map(tmp, Math.max(fileSize, minSize));
+		write(payload, timestamp);
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+		logger.info("Snapshot file rolled, size={}.", buffer.capacity());
+	}
+
+	private static void map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (raf.length() < size) {
+			raf.setLength(size);
+		}
+		channel = raf.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private static void load() throws IOException {
+		byte[] last = null;
+		long lastTimestamp = 0;
+		int end = 0;
+		while (buffer.capacity() - end >= HEADER_SIZE && buffer.getInt(end) == MAGIC) {
+			int length = buffer.getInt(end + 4);
+			if (length < 0 || end + HEADER_SIZE + length > buffer.capacity()) {
+				break;
+			}
+			long crcValue = buffer.getLong(end + 8);
+			byte[] payload = new byte[length];
+			buffer.position(end + HEADER_SIZE);
+			buffer.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if (crc.getValue() != crcValue) {
+				logger.warn("Snapshot record with a bad crc at {}, ignored with the rest of the file.", end);
+				break;
+			}
+			last = payload;
+			lastTimestamp = buffer.getLong(end + 16);
+			end += HEADER_SIZE + length;
+		}
+		buffer.position(end);
+		if (last == null) {
+			logger.info("No snapshot to restore.");
+			return;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(last));
+		int offsetCount = in.readInt();
+		for (int i = 0; i < offsetCount; i++) {
+			restoredOffsets.put(in.readUTF(), in.readLong());
+		}
+		int stateCount = in.readInt();
+		for (int i = 0; i < stateCount; i++) {
+			String name = in.readUTF();
+			byte[] state = new byte[in.readInt()];
+			in.readFully(state);
+			restoredStates.put(name, state);
+		}
+		logger.info("Loaded snapshot, timestamp={}, offsets={}, states={}.", lastTimestamp, restoredOffsets, restoredStates.keySet());
+	}
+
+}
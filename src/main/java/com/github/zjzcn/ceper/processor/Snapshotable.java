@@ -0,0 +1,27 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.io.IOException;
+
+/**
+ * A processor whose state survives a restart, see {@link SnapshotManager}.
+ * 
+ * A processor registers itself with {@link SnapshotManager#register(String, Snapshotable)}
+ * in start(), which restores the last snapshot into it. It stays registered after
+ * stop() for the last snapshot.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface Snapshotable {
+
+	/**
+	 * The current state, called from the snapshot thread while events keep coming.
+	 */
+	byte[] snapshot() throws IOException;
+
+	/**
+	 * Loads a state returned by snapshot(), before any event is processed.
+	 */
+	void restore(byte[] state) throws IOException;
+
+}
@@ -0,0 +1,428 @@
+package com.github.zjzcn.ceper.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.processor.window.Aggregates;
+import com.github.zjzcn.ceper.processor.window.GroupWindow;
+import com.github.zjzcn.ceper.processor.window.PaneWindow;
+import com.github.zjzcn.ceper.processor.window.WindowParser;
+import com.github.zjzcn.ceper.processor.window.WindowStatement;
+import com.github.zjzcn.ceper.rule.Rule;
+import com.github.zjzcn.ceper.rule.RuleDiff;
+import com.github.zjzcn.ceper.rule.RuleListener;
+import com.github.zjzcn.ceper.rule.RuleManager;
+import com.typesafe.config.Config;
+
+/**
+ * Windowed aggregation without Esper for rules with processorType "window", like
+ * "select count(*), avg(price) from Apple.win:time_batch(5 sec) group by symbol",
+ * see {@link WindowParser}. Only aggregates are kept, in primitive pane or ring
+ * buffers per group (see {@link PaneWindow}), never the events.
+ * 
+ * Differences to Esper: windows are per group (like std:groupwin), time is
+ * processing time, sliding windows emit on arrival only and sliding time windows
+ * slide by 1/time_panes of their size.
+ * 
+ * Results are emitted like Esper results, a list of rows: for time_batch all groups
+ * at the end of the batch, otherwise the row of the group the event updated.
+ * 
+ * The group windows are snapshotted, see {@link SnapshotManager}, and restored for
+ * the rules whose statement did not change meanwhile. A group moves with the hashTag
+ * of its last event when the hash ring changes, see {@link KeyedStateful}.
+ * 
+ * @author zjzcn
+ *
+ */
+public class WindowProcessor extends AbstractProcessor implements Snapshotable, KeyedStateful {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final int DEFAULT_TIME_PANES = 10;
+
+	private int timePanes = DEFAULT_TIME_PANES;
+
+	private final Map<String, Rule> activeRules = new HashMap<String, Rule>();
+
+	private final Map<String, WindowRule> windowRules = new HashMap<String, WindowRule>();
+
+	// dataType -> rules, replaced as a whole on rule changes
+	private volatile Map<String, WindowRule[]> rulesByDataType = Collections.emptyMap();
+
+	private ScheduledExecutorService windowExecutor;
+
+	private RuleListener ruleListener;
+
+	@Override
+	public String getProcessorType() {
+		return "window";
+	}
+
+	@Override
+	public void config(Config config) {
+		configResultBus(config);
+		if (config.hasPath("time_panes")) {
+			timePanes = config.getInt("time_panes");
+		}
+	}
+
+	@Override
+	public void start() {
+		windowExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "window-" + getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ruleListener = RuleManager.subscribe(new RuleListener() {
+			@Override
+			public void childhanged(Set<Rule> rules) {
+				applyRules(rules);
+			}
+		});
+		applyRules(RuleManager.getRules());
+		SnapshotManager.register(getName(), this);
+		logger.info("Started WindowProcessor, name={}.", getName());
+	}
+
+	@Override
+	public void stop() {
+		if (ruleListener != null) {
+			RuleManager.unsubscribe(ruleListener);
+		}
+		if (windowExecutor != null) {
+			windowExecutor.shutdown();
+		}
+	}
+
+	@Override
+	public void process(SourceEvent event) {
+		WindowRule[] rules = rulesByDataType.get(event.getDataType());
+		Map<String, Object> data = event.getData();
+		if (rules == null || data == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (WindowRule rule : rules) {
+			if (rule.statement.getWhere().test(data)) {
+				rule.add(now, event.getHashTag(), data);
+			}
+		}
+	}
+
+	@Override
+	public byte[] snapshot() throws IOException {
+		return writeGroups(null);
+	}
+
+	@Override
+	public void restore(byte[] state) throws IOException {
+		readGroups(state);
+	}
+
+	/**
+	 * The exported groups leave this node.
+	 */
+	@Override
+	public byte[] exportState(HashTagFilter filter) throws IOException {
+		return writeGroups(filter);
+	}
+
+	@Override
+	public void importState(byte[] state) throws IOException {
+		readGroups(state);
+	}
+
+	// filter: the groups to move out, null to copy them all
+	private byte[] writeGroups(HashTagFilter filter) throws IOException {
+		List<WindowRule> rules;
+		synchronized (this) {
+			rules = new ArrayList<WindowRule>(windowRules.values());
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (WindowRule rule : rules) {
+			out.writeBoolean(true);
+			out.writeUTF(rule.statementId);
+			out.writeUTF(rule.statementText);
+			for (Map.Entry<String, Group> entry : rule.groups.entrySet()) {
+				Group group = entry.getValue();
+				synchronized (group.window) {
+					if (group.window.isRemoved()) {
+						continue;
+					}
+					if (filter != null) {
+						if (!filter.accept(group.hashTag)) {
+							continue;
+						}
+						group.window.remove();
+						rule.groups.remove(entry.getKey(), group);
+					}
+					out.writeBoolean(true);
+					out.writeUTF(entry.getKey());
+					out.writeObject(group.hashTag);
+					out.writeObject(group.groupValues);
+					out.writeObject(group.window);
+					// the windows are mutable, no back references between groups
+					out.reset();
+				}
+			}
+			out.writeBoolean(false);
+		}
+		out.writeBoolean(false);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private synchronized void readGroups(byte[] state) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+		try {
+			while (in.readBoolean()) {
+				String statementId = in.readUTF();
+				String statementText = in.readUTF();
+				WindowRule rule = windowRules.get(statementId);
+				boolean unchanged = rule != null && rule.statementText.equals(statementText);
+				while (in.readBoolean()) {
+					String key = in.readUTF();
+					String hashTag = (String) in.readObject();
+					Object[] groupValues = (Object[]) in.readObject();
+					GroupWindow window = (GroupWindow) in.readObject();
+					if (unchanged) {
+						Group group = new Group(groupValues, window, rule.statement);
+						group.hashTag = hashTag;
+						Group old = rule.groups.put(key, group);
+						if (old != null) {
+							synchronized (old.window) {
+								old.window.remove();
+							}
+						}
+					}
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Invalid window snapshot.", e);
+		}
+	}
+
+	/**
+	 * Only the rules that were added, removed or changed are touched, the others
+	 * keep their window state.
+	 */
+	private synchronized void applyRules(Set<Rule> rules) {
+		List<Rule> ownRules = new ArrayList<Rule>();
+		for (Rule rule : rules) {
+			if (getProcessorType().equals(rule.getProcessorType())) {
+				ownRules.add(rule);
+			}
+		}
+		RuleDiff diff = RuleDiff.diff(activeRules, ownRules);
+		if (diff.isEmpty()) {
+			return;
+		}
+		logger.info("Apply window rule changes, name={}, diff={}", getName(), diff);
+		for (Rule rule : diff.getRemoved()) {
+			removeRule(rule);
+		}
+		for (Rule rule : diff.getChanged()) {
+			removeRule(rule);
+			addRule(rule);
+		}
+		for (Rule rule : diff.getAdded()) {
+			addRule(rule);
+		}
+		Map<String, List<WindowRule>> grouped = new HashMap<String, List<WindowRule>>();
+		for (WindowRule rule : windowRules.values()) {
+			List<WindowRule> list = grouped.get(rule.statement.getDataType());
+			if (list == null) {
+				list = new ArrayList<WindowRule>();
+				grouped.put(rule.statement.getDataType(), list);
+			}
+			list.add(rule);
+		}
+		Map<String, WindowRule[]> index = new HashMap<String, WindowRule[]>(grouped.size() * 4 / 3 + 1);
+		for (Map.Entry<String, List<WindowRule>> entry : grouped.entrySet()) {
+			index.put(entry.getKey(), entry.getValue().toArray(new WindowRule[entry.getValue().size()]));
+		}
+		rulesByDataType = index;
+	}
+
+	private void addRule(Rule rule) {
+		WindowStatement statement;
+		try {
+			statement = WindowParser.parse(rule.getStatement());
+		} catch (Exception e) {
+			logger.error("Compile window rule failed, rule=" + rule, e);
+			return;
+		}
+		final WindowRule windowRule = new WindowRule(rule, statement);
+		if (statement.isTime()) {
+			long size = statement.getSize();
+			// time_batch: at the end of each batch, time: drop the groups that went idle
+			windowRule.timer = windowExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						windowRule.tick(System.currentTimeMillis());
+					} catch (Exception e) {
+						logger.error("Error while closing window, statementId=" + windowRule.statementId, e);
+					}
+				}
+			}, size - System.currentTimeMillis() % size, size, TimeUnit.MILLISECONDS);
+		}
+		windowRules.put(rule.getStatementId(), windowRule);
+		activeRules.put(rule.getStatementId(), rule);
+	}
+
+	private void removeRule(Rule rule) {
+		WindowRule windowRule = windowRules.remove(rule.getStatementId());
+		if (windowRule != null && windowRule.timer != null) {
+			windowRule.timer.cancel(false);
+		}
+		activeRules.remove(rule.getStatementId());
+	}
+
+	private void emit(WindowRule rule, List<Map<String, Object>> rows) {
+		ResultEvent resultEvent = new ResultEvent();
+		resultEvent.setProcessorType(rule.processorType);
+		resultEvent.setStatementId(rule.statementId);
+		resultEvent.setResult(rows);
+		emit(resultEvent);
+	}
+
+	private final class WindowRule {
+
+		final String statementId;
+
+		final String processorType;
+
+		final String statementText;
+
+		final WindowStatement statement;
+
+		final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+		ScheduledFuture<?> timer;
+
+		WindowRule(Rule rule, WindowStatement statement) {
+			this.statementId = rule.getStatementId();
+			this.processorType = rule.getProcessorType();
+			this.statementText = rule.getStatement();
+			this.statement = statement;
+		}
+
+		void add(long now, String hashTag, Map<String, Object> data) {
+			String[] groupBy = statement.getGroupBy();
+			Object[] groupValues = new Object[groupBy.length];
+			StringBuilder key = new StringBuilder();
+			for (int i = 0; i < groupBy.length; i++) {
+				groupValues[i] = data.get(groupBy[i]);
+				key.append(groupValues[i]).append('\u0001');
+			}
+			double[] values = statement.values(data);
+			while (true) {
+				Group group = groups.get(key.toString());
+				if (group == null) {
+					Group newGroup = new Group(groupValues, GroupWindow.create(statement, timePanes), statement);
+					group = groups.putIfAbsent(key.toString(), newGroup);
+					if (group == null) {
+						group = newGroup;
+					}
+				}
+				Map<String, Object> row = null;
+				synchronized (group.window) {
+					if (group.window.isRemoved()) {
+						// dropped as idle in between, retry with a new group
+						continue;
+					}
+					group.hashTag = hashTag;
+					boolean full = group.window.add(now, values);
+					if (statement.getKind() != WindowStatement.Kind.TIME_BATCH && (full || !statement.isBatch())) {
+						row = group.row(now, statement);
+						if (full && statement.isBatch()) {
+							group.window.reset();
+						}
+					}
+				}
+				if (row != null) {
+					List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(1);
+					rows.add(row);
+					emit(this, rows);
+				}
+				return;
+			}
+		}
+
+		void tick(long now) {
+			boolean batch = statement.getKind() == WindowStatement.Kind.TIME_BATCH;
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+			for (Map.Entry<String, Group> entry : groups.entrySet()) {
+				Group group = entry.getValue();
+				synchronized (group.window) {
+					if (batch) {
+						PaneWindow window = (PaneWindow) group.window;
+						// the batch that just ended, the tick may run a little late
+						long paneId = window.paneId(now) - 1;
+						if (window.aggregatePane(paneId, group.aggregates)) {
+							rows.add(group.aggregates.toRow(statement.getItems(), group.groupValues));
+							window.evictPane(paneId);
+						}
+					}
+					if (group.window.isEmpty(now)) {
+						group.window.remove();
+						groups.remove(entry.getKey(), group);
+					}
+				}
+			}
+			if (!rows.isEmpty()) {
+				emit(this, rows);
+			}
+		}
+	}
+
+	private static final class Group {
+
+		final Object[] groupValues;
+
+		final GroupWindow window;
+
+		final Aggregates aggregates;
+
+		// of the last event, guarded by window
+		String hashTag;
+
+		Group(Object[] groupValues, GroupWindow window, WindowStatement statement) {
+			this.groupValues = groupValues;
+			this.window = window;
+			this.aggregates = new Aggregates(statement.getValueFields().length);
+		}
+
+		Map<String, Object> row(long now, WindowStatement statement) {
+			window.aggregate(now, aggregates);
+			return aggregates.toRow(statement.getItems(), groupValues);
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.github.zjzcn.ceper.processor.predicate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed filter rule: the dataType it reads, the compiled where clause and the
+ * selected fields.
+ * 
+ * @author zjzcn
+ *
+ */
+public class CompiledStatement {
+
+	private final String dataType;
+
+	// null: select *
+	private final String[] fields;
+
+	private final String[] aliases;
+
+	private final Predicate where;
+
+	public CompiledStatement(String dataType, List<String> fields, List<String> aliases, Predicate where) {
+		this.dataType = dataType;
+		this.fields = fields == null ? null : fields.toArray(new String[fields.size()]);
+		this.aliases = aliases == null ? null : aliases.toArray(new String[aliases.size()]);
+		this.where = where;
+	}
+
+	public boolean test(Map<String, Object> data) {
+		return where.test(data);
+	}
+
+	/**
+	 * The selected fields of a matching event, a copy.
+	 */
+	public Map<String, Object> select(Map<String, Object> data) {
+		if (fields == null) {
+			return new HashMap<String, Object>(data);
+		}
+		Map<String, Object> result = new HashMap<String, Object>(fields.length * 4 / 3 + 1);
+		for (int i = 0; i < fields.length; i++) {
+			result.put(aliases[i], data.get(fields[i]));
+		}
+		return result;
+	}
+
+	public String getDataType() {
+		return dataType;
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.github.zjzcn.ceper.processor.predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a rule statement into tokens: identifiers (optionally `quoted`), numbers,
+ * 'strings' with '' as escaped quote, comparison operators, parentheses, commas,
+ * *, : (as in dataType.win:time(5 sec)) and the arithmetic sign -.
+ * 
+ * @author zjzcn
+ *
+ */
+public class Lexer {
+
+	public static List<Token> tokenize(String text) {
+		List<Token> tokens = new ArrayList<Token>();
+		int pos = 0;
+		int length = text.length();
+		while (pos < length) {
+			char c = text.charAt(pos);
+			if (Character.isWhitespace(c)) {
+				pos++;
+				continue;
+			}
+			int start = pos;
+			if (Character.isLetter(c) || c == '_') {
+				while (pos < length && isIdentChar(text.charAt(pos))) {
+					pos++;
+				}
+				tokens.add(new Token(Token.Type.IDENT, text.substring(start, pos), start));
+			} else if (c == '`') {
+				int end = text.indexOf('`', pos + 1);
+				if (end < 0) {
+					throw error(text, start, "Unterminated quoted identifier");
+				}
+				tokens.add(new Token(Token.Type.IDENT, text.substring(pos + 1, end), start));
+				pos = end + 1;
+			} else if (Character.isDigit(c) || (c == '.' && pos + 1 < length && Character.isDigit(text.charAt(pos + 1)))) {
+				while (pos < length && isNumberChar(text.charAt(pos), text.charAt(pos - 1))) {
+					pos++;
+				}
+				tokens.add(new Token(Token.Type.NUMBER, text.substring(start, pos), start));
+			} else if (c == '\'' || c == '"') {
+				StringBuilder sb = new StringBuilder();
+				pos++;
+				while (true) {
+					if (pos >= length) {
+						throw error(text, start, "Unterminated string");
+					}
+					char ch = text.charAt(pos++);
+					if (ch == c) {
+						if (pos < length && text.charAt(pos) == c) {
+							sb.append(c);
+							pos++;
+							continue;
+						}
+						break;
+					}
+					sb.append(ch);
+				}
+				tokens.add(new Token(Token.Type.STRING, sb.toString(), start));
+			} else if (c == '(') {
+				tokens.add(new Token(Token.Type.LPAREN, "(", pos++));
+			} else if (c == ')') {
+				tokens.add(new Token(Token.Type.RPAREN, ")", pos++));
+			} else if (c == ',') {
+				tokens.add(new Token(Token.Type.COMMA, ",", pos++));
+			} else if (c == '*') {
+				tokens.add(new Token(Token.Type.STAR, "*", pos++));
+			} else if (c == ':') {
+				tokens.add(new Token(Token.Type.COLON, ":", pos++));
+			} else if (c == '=' || c == '!' || c == '<' || c == '>') {
+				pos++;
+				if (pos < length) {
+					char next = text.charAt(pos);
+					if (next == '=' || (c == '<' && next == '>')) {
+						pos++;
+					}
+				}
+				String operator = text.substring(start, pos);
+				if (operator.equals("!")) {
+					throw error(text, start, "Unexpected '!'");
+				}
+				tokens.add(new Token(Token.Type.OPERATOR, operator, start));
+			} else if (c == '-') {
+				tokens.add(new Token(Token.Type.OPERATOR, "-", pos++));
+			} else {
+				throw error(text, start, "Unexpected character '" + c + "'");
+			}
+		}
+		tokens.add(new Token(Token.Type.EOF, "", length));
+		return tokens;
+	}
+
+	private static boolean isIdentChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+	}
+
+	private static boolean isNumberChar(char c, char previous) {
+		if (Character.isDigit(c) || c == '.' || c == 'e' || c == 'E') {
+			return true;
+		}
+		// exponent sign
+		return (c == '-' || c == '+') && (previous == 'e' || previous == 'E');
+	}
+
+	static IllegalArgumentException error(String text, int position, String message) {
+		return new IllegalArgumentException(message + " at " + position + ": " + text);
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.github.zjzcn.ceper.processor.predicate;
+
+import java.util.Map;
+
+/**
+ * A compiled where clause, evaluated directly against SourceEvent.data.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface Predicate {
+
+	boolean test(Map<String, Object> data);
+
+}
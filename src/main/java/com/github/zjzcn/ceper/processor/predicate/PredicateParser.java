@@ -0,0 +1,288 @@
+package com.github.zjzcn.ceper.processor.predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the filter subset of EPL:
+ * 
+ * <pre>
+ * 	select * | field [as alias], ... from dataType [where condition]
+ * 
+ * 	condition: condition or condition | condition and condition | not condition | ( condition )
+ * 		| operand (= | == | != | &lt;&gt; | &lt; | &lt;= | &gt; | &gt;=) operand
+ * 		| field is [not] null | field [not] in (literal, ...) | field [not] between literal and literal
+ * 		| field
+ * 	operand: field | number | 'string' | true | false
+ * </pre>
+ * 
+ * Anything else, windows, aggregations, patterns or joins, is rejected with an
+ * IllegalArgumentException so the rule can stay on Esper.
+ * 
+ * @author zjzcn
+ *
+ */
+public class PredicateParser {
+
+	private final String text;
+
+	private final List<Token> tokens;
+
+	private int pos;
+
+	public PredicateParser(String text) {
+		this.text = text;
+		this.tokens = Lexer.tokenize(text);
+	}
+
+	public static CompiledStatement parseStatement(String statement) {
+		return new PredicateParser(statement).statement();
+	}
+
+	public static Predicate parseCondition(String condition) {
+		PredicateParser parser = new PredicateParser(condition);
+		Predicate predicate = parser.condition();
+		parser.expectEnd();
+		return predicate;
+	}
+
+	private CompiledStatement statement() {
+		expectKeyword("select");
+		List<String> fields = null;
+		List<String> aliases = null;
+		if (peek().is(Token.Type.STAR)) {
+			next();
+		} else {
+			fields = new ArrayList<String>();
+			aliases = new ArrayList<String>();
+			do {
+				String field = identifier();
+				String alias = field;
+				if (acceptKeyword("as")) {
+					alias = identifier();
+				}
+				fields.add(field);
+				aliases.add(alias);
+			} while (accept(Token.Type.COMMA));
+		}
+		expectKeyword("from");
+		String dataType = identifier();
+		Predicate where = Predicates.TRUE;
+		if (acceptKeyword("where")) {
+			where = condition();
+		}
+		expectEnd();
+		return new CompiledStatement(dataType, fields, aliases, where);
+	}
+
+	public Predicate condition() {
+		List<Predicate> operands = new ArrayList<Predicate>();
+		operands.add(andCondition());
+		while (acceptKeyword("or")) {
+			operands.add(andCondition());
+		}
+		return Predicates.or(operands);
+	}
+
+	private Predicate andCondition() {
+		List<Predicate> operands = new ArrayList<Predicate>();
+		operands.add(notCondition());
+		while (acceptKeyword("and")) {
+			operands.add(notCondition());
+		}
+		return Predicates.and(operands);
+	}
+
+	private Predicate notCondition() {
+		if (acceptKeyword("not")) {
+			return Predicates.not(notCondition());
+		}
+		if (accept(Token.Type.LPAREN)) {
+			Predicate predicate = condition();
+			expect(Token.Type.RPAREN);
+			return predicate;
+		}
+		return comparison();
+	}
+
+	private Predicate comparison() {
+		Token first = peek();
+		Object left = operand();
+		if (!(left instanceof Field)) {
+			Token op = expect(Token.Type.OPERATOR);
+			Object right = operand();
+			if (!(right instanceof Field)) {
+				throw error(first, "Comparison needs a field");
+			}
+			// constant op field -> field flipped-op constant
+			return Predicates.compare(((Field) right).name, flip(op), left);
+		}
+		String field = ((Field) left).name;
+		if (acceptKeyword("is")) {
+			boolean negate = acceptKeyword("not");
+			expectKeyword("null");
+			return Predicates.isNull(field, negate);
+		}
+		boolean negate = acceptKeyword("not");
+		if (acceptKeyword("in")) {
+			expect(Token.Type.LPAREN);
+			List<Object> constants = new ArrayList<Object>();
+			do {
+				constants.add(literal());
+			} while (accept(Token.Type.COMMA));
+			expect(Token.Type.RPAREN);
+			return Predicates.in(field, constants, negate);
+		}
+		if (acceptKeyword("between")) {
+			Object low = literal();
+			expectKeyword("and");
+			Object high = literal();
+			List<Predicate> range = new ArrayList<Predicate>();
+			range.add(Predicates.compare(field, ">=", low));
+			range.add(Predicates.compare(field, "<=", high));
+			Predicate between = Predicates.and(range);
+			return negate ? Predicates.not(between) : between;
+		}
+		if (negate) {
+			throw error(peek(), "Expected in or between");
+		}
+		if (!peek().is(Token.Type.OPERATOR) || peek().isOperator("-")) {
+			// a bare boolean field
+			return Predicates.compare(field, "=", Boolean.TRUE);
+		}
+		Token op = next();
+		Object right = operand();
+		if (right instanceof Field) {
+			Predicates.matches(op.getText(), 0);
+			return Predicates.compareFields(field, op.getText(), ((Field) right).name);
+		}
+		return Predicates.compare(field, op.getText(), right);
+	}
+
+	private Object operand() {
+		Token token = peek();
+		if (token.is(Token.Type.IDENT) && !isLiteralKeyword(token)) {
+			return new Field(identifier());
+		}
+		return literal();
+	}
+
+	public Object literal() {
+		Token token = next();
+		if (token.isOperator("-")) {
+			Token number = expect(Token.Type.NUMBER);
+			return -parseNumber(number);
+		}
+		if (token.is(Token.Type.NUMBER)) {
+			return parseNumber(token);
+		}
+		if (token.is(Token.Type.STRING)) {
+			return token.getText();
+		}
+		if (token.isKeyword("true")) {
+			return Boolean.TRUE;
+		}
+		if (token.isKeyword("false")) {
+			return Boolean.FALSE;
+		}
+		throw error(token, "Expected a literal");
+	}
+
+	private double parseNumber(Token token) {
+		try {
+			return Double.parseDouble(token.getText());
+		} catch (NumberFormatException e) {
+			throw error(token, "Invalid number");
+		}
+	}
+
+	private String flip(Token op) {
+		switch (op.getText()) {
+		case ">":
+			return "<";
+		case ">=":
+			return "<=";
+		case "<":
+			return ">";
+		case "<=":
+			return ">=";
+		default:
+			return op.getText();
+		}
+	}
+
+	private static boolean isLiteralKeyword(Token token) {
+		return token.isKeyword("true") || token.isKeyword("false");
+	}
+
+	public String identifier() {
+		Token token = next();
+		if (!token.is(Token.Type.IDENT)) {
+			throw error(token, "Expected an identifier");
+		}
+		return token.getText();
+	}
+
+	public Token peek() {
+		return tokens.get(pos);
+	}
+
+	public Token next() {
+		Token token = tokens.get(pos);
+		if (!token.is(Token.Type.EOF)) {
+			pos++;
+		}
+		return token;
+	}
+
+	public boolean accept(Token.Type type) {
+		if (peek().is(type)) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	public boolean acceptKeyword(String keyword) {
+		if (peek().isKeyword(keyword)) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	public Token expect(Token.Type type) {
+		Token token = next();
+		if (!token.is(type)) {
+			throw error(token, "Expected " + type);
+		}
+		return token;
+	}
+
+	public void expectKeyword(String keyword) {
+		Token token = next();
+		if (!token.isKeyword(keyword)) {
+			throw error(token, "Expected " + keyword);
+		}
+	}
+
+	public void expectEnd() {
+		if (!peek().is(Token.Type.EOF)) {
+			throw error(peek(), "Unsupported");
+		}
+	}
+
+	public IllegalArgumentException error(Token token, String message) {
+		return Lexer.error(text, token.getPosition(), message + ", found " + token);
+	}
+
+	private static final class Field {
+
+		final String name;
+
+		Field(String name) {
+			this.name = name;
+		}
+	}
+
+}
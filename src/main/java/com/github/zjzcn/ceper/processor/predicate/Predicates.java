@@ -0,0 +1,280 @@
+package com.github.zjzcn.ceper.processor.predicate;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The predicate nodes a where clause compiles to. Each comparison is specialized
+ * on the operator and the constant type at compile time, so evaluating it is a
+ * map lookup, an instanceof and one primitive compare.
+ * 
+ * Like SQL, a comparison with a missing (null) field is false, also for !=.
+ * 
+ * @author zjzcn
+ *
+ */
+public class Predicates {
+
+	public static final Predicate TRUE = new Predicate() {
+		@Override
+		public boolean test(Map<String, Object> data) {
+			return true;
+		}
+	};
+
+	public static Predicate and(List<Predicate> predicates) {
+		if (predicates.size() == 1) {
+			return predicates.get(0);
+		}
+		if (predicates.size() == 2) {
+			final Predicate left = predicates.get(0);
+			final Predicate right = predicates.get(1);
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					return left.test(data) && right.test(data);
+				}
+			};
+		}
+		final Predicate[] array = predicates.toArray(new Predicate[predicates.size()]);
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				for (Predicate predicate : array) {
+					if (!predicate.test(data)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	public static Predicate or(List<Predicate> predicates) {
+		if (predicates.size() == 1) {
+			return predicates.get(0);
+		}
+		final Predicate[] array = predicates.toArray(new Predicate[predicates.size()]);
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				for (Predicate predicate : array) {
+					if (predicate.test(data)) {
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	public static Predicate not(final Predicate predicate) {
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				return !predicate.test(data);
+			}
+		};
+	}
+
+	public static Predicate isNull(final String field, final boolean negate) {
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				return (data.get(field) == null) != negate;
+			}
+		};
+	}
+
+	/**
+	 * field op constant, the constant is a Number, String or Boolean.
+	 */
+	public static Predicate compare(final String field, String op, Object constant) {
+		if (constant instanceof Number) {
+			return compareNumber(field, op, ((Number) constant).doubleValue());
+		}
+		if (constant instanceof String) {
+			return compareString(field, op, (String) constant);
+		}
+		if (constant instanceof Boolean) {
+			final boolean negate = isNotEqual(op);
+			if (!negate && !isEqual(op)) {
+				throw new IllegalArgumentException("Operator " + op + " not supported for boolean field " + field);
+			}
+			final Boolean value = (Boolean) constant;
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Boolean && value.equals(v) != negate;
+				}
+			};
+		}
+		throw new IllegalArgumentException("Can not compare field " + field + " with " + constant);
+	}
+
+	private static Predicate compareNumber(final String field, String op, final double c) {
+		switch (op) {
+		case "=":
+		case "==":
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Number && ((Number) v).doubleValue() == c;
+				}
+			};
+		case "!=":
+		case "<>":
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Number && ((Number) v).doubleValue() != c;
+				}
+			};
+		case ">":
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Number && ((Number) v).doubleValue() > c;
+				}
+			};
+		case ">=":
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Number && ((Number) v).doubleValue() >= c;
+				}
+			};
+		case "<":
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Number && ((Number) v).doubleValue() < c;
+				}
+			};
+		case "<=":
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v instanceof Number && ((Number) v).doubleValue() <= c;
+				}
+			};
+		default:
+			throw new IllegalArgumentException("Unknown operator " + op);
+		}
+	}
+
+	private static Predicate compareString(final String field, final String op, final String c) {
+		if (isEqual(op) || isNotEqual(op)) {
+			final boolean negate = isNotEqual(op);
+			return new Predicate() {
+				@Override
+				public boolean test(Map<String, Object> data) {
+					Object v = data.get(field);
+					return v != null && c.equals(v.toString()) != negate;
+				}
+			};
+		}
+		final int sign = ">".equals(op) || ">=".equals(op) ? 1 : -1;
+		final boolean inclusive = op.endsWith("=");
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				Object v = data.get(field);
+				if (v == null) {
+					return false;
+				}
+				int cmp = Integer.signum(v.toString().compareTo(c));
+				return cmp == sign || (inclusive && cmp == 0);
+			}
+		};
+	}
+
+	/**
+	 * field op otherField, numbers compare as numbers, anything else by string.
+	 */
+	public static Predicate compareFields(final String left, final String op, final String right) {
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				Object l = data.get(left);
+				Object r = data.get(right);
+				if (l == null || r == null) {
+					return false;
+				}
+				int cmp;
+				if (l instanceof Number && r instanceof Number) {
+					cmp = Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+				} else {
+					cmp = l.toString().compareTo(r.toString());
+				}
+				return matches(op, cmp);
+			}
+		};
+	}
+
+	/**
+	 * field in (constants), numeric constants match any numeric field of the same value.
+	 */
+	public static Predicate in(final String field, List<Object> constants, final boolean negate) {
+		final Set<Object> values = new HashSet<Object>();
+		for (Object constant : constants) {
+			values.add(normalize(constant));
+		}
+		return new Predicate() {
+			@Override
+			public boolean test(Map<String, Object> data) {
+				Object v = data.get(field);
+				return v != null && values.contains(normalize(v)) != negate;
+			}
+		};
+	}
+
+	private static Object normalize(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof Boolean) {
+			return value;
+		}
+		return value.toString();
+	}
+
+	static boolean matches(String op, int cmp) {
+		switch (op) {
+		case "=":
+		case "==":
+			return cmp == 0;
+		case "!=":
+		case "<>":
+			return cmp != 0;
+		case ">":
+			return cmp > 0;
+		case ">=":
+			return cmp >= 0;
+		case "<":
+			return cmp < 0;
+		case "<=":
+			return cmp <= 0;
+		default:
+			throw new IllegalArgumentException("Unknown operator " + op);
+		}
+	}
+
+	private static boolean isEqual(String op) {
+		return "=".equals(op) || "==".equals(op);
+	}
+
+	private static boolean isNotEqual(String op) {
+		return "!=".equals(op) || "<>".equals(op);
+	}
+
+}
@@ -0,0 +1,56 @@
+package com.github.zjzcn.ceper.processor.predicate;
+
+/**
+ * A token of a rule statement, keywords are IDENT tokens matched case insensitively.
+ * 
+ * @author zjzcn
+ *
+ */
+public class Token {
+
+	public enum Type {
+		IDENT, NUMBER, STRING, OPERATOR, LPAREN, RPAREN, COMMA, STAR, COLON, EOF
+	}
+
+	private final Type type;
+
+	private final String text;
+
+	private final int position;
+
+	public Token(Type type, String text, int position) {
+		this.type = type;
+		this.text = text;
+		this.position = position;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public boolean is(Type type) {
+		return this.type == type;
+	}
+
+	public boolean isKeyword(String keyword) {
+		return type == Type.IDENT && text.equalsIgnoreCase(keyword);
+	}
+
+	public boolean isOperator(String operator) {
+		return type == Type.OPERATOR && text.equals(operator);
+	}
+
+	@Override
+	public String toString() {
+		return type == Type.EOF ? "end of statement" : "'" + text + "'";
+	}
+
+}
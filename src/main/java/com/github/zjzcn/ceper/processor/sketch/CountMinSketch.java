@@ -0,0 +1,158 @@
+package com.github.zjzcn.ceper.processor.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.zjzcn.ceper.utils.HashUtils;
+
+/**
+ * Frequency estimate in a depth x width counter table, an item is overestimated
+ * by at most 2 / width of the total count with probability 1 - 1 / 2^depth.
+ * 
+ * The topK items with the highest estimates are tracked as heavy hitters.
+ * 
+ * @author zjzcn
+ *
+ */
+public class CountMinSketch implements Sketch<CountMinSketch> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int width;
+
+	private final int depth;
+
+	private final int topK;
+
+	private final long[] table;
+
+	private long total;
+
+	private final Map<String, Long> heavyHitters;
+
+	// lowest heavy hitter estimate, may be stale low which only costs a rescan
+	private long minHeavyHitter;
+
+	public CountMinSketch(int width, int depth, int topK) {
+		if (width <= 0 || depth <= 0 || topK < 0) {
+			throw new IllegalArgumentException("CountMinSketch width and depth must be positive, width=" + width + ", depth=" + depth);
+		}
+		this.width = width;
+		this.depth = depth;
+		this.topK = topK;
+		this.table = new long[width * depth];
+		this.heavyHitters = new HashMap<String, Long>(topK * 2);
+	}
+
+	public void add(String item) {
+		add(item, 1);
+	}
+
+	public void add(String item, long count) {
+		long hash = HashUtils.hash64(item);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long estimate = Long.MAX_VALUE;
+		for (int i = 0; i < depth; i++) {
+			int index = i * width + index(h1, h2, i);
+			table[index] += count;
+			estimate = Math.min(estimate, table[index]);
+		}
+		total += count;
+		offerHeavyHitter(item, estimate);
+	}
+
+	public long estimate(String item) {
+		long hash = HashUtils.hash64(item);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long estimate = Long.MAX_VALUE;
+		for (int i = 0; i < depth; i++) {
+			estimate = Math.min(estimate, table[i * width + index(h1, h2, i)]);
+		}
+		return estimate;
+	}
+
+	private int index(int h1, int h2, int row) {
+		// Kirsch-Mitzenmacher: row hashes derived from two halves of one hash
+		return ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+	}
+
+	private void offerHeavyHitter(String item, long estimate) {
+		if (topK == 0) {
+			return;
+		}
+		if (heavyHitters.containsKey(item) || heavyHitters.size() < topK) {
+			heavyHitters.put(item, estimate);
+			return;
+		}
+		if (estimate <= minHeavyHitter) {
+			return;
+		}
+		String minItem = null;
+		long min = Long.MAX_VALUE;
+		for (Map.Entry<String, Long> entry : heavyHitters.entrySet()) {
+			if (entry.getValue() < min) {
+				min = entry.getValue();
+				minItem = entry.getKey();
+			}
+		}
+		if (estimate > min) {
+			heavyHitters.remove(minItem);
+			heavyHitters.put(item, estimate);
+			min = estimate;
+			for (Long value : heavyHitters.values()) {
+				min = Math.min(min, value);
+			}
+		}
+		minHeavyHitter = min;
+	}
+
+	/**
+	 * The heavy hitters and their estimates, highest first.
+	 */
+	public Map<String, Long> getHeavyHitters() {
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(heavyHitters.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+				return Long.compare(o2.getValue(), o1.getValue());
+			}
+		});
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : entries) {
+			result.put(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	@Override
+	public void merge(CountMinSketch other) {
+		if (other.width != width || other.depth != depth) {
+			throw new IllegalArgumentException("Can not merge CountMinSketch of " + other.depth + "x" + other.width
+					+ " into " + depth + "x" + width);
+		}
+		for (int i = 0; i < table.length; i++) {
+			table[i] += other.table[i];
+		}
+		total += other.total;
+		// the candidates of both sides, re-estimated against the merged table
+		List<String> candidates = new ArrayList<String>(heavyHitters.keySet());
+		candidates.addAll(other.heavyHitters.keySet());
+		heavyHitters.clear();
+		minHeavyHitter = 0;
+		for (String item : candidates) {
+			offerHeavyHitter(item, estimate(item));
+		}
+	}
+
+}
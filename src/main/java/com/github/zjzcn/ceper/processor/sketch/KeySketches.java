@@ -0,0 +1,181 @@
+package com.github.zjzcn.ceper.processor.sketch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sketches of one key (dataType + group) in one window: a HyperLogLog per
+ * distinct field, a CountMinSketch per frequency field and a KllSketch per
+ * quantile field. The size depends on the configuration only, not on the rate.
+ * 
+ * @author zjzcn
+ *
+ */
+public class KeySketches implements Sketch<KeySketches> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String dataType;
+
+	private final String group;
+
+	private long count;
+
+	private final HyperLogLog[] distincts;
+
+	private final CountMinSketch[] frequencies;
+
+	private final KllSketch[] quantiles;
+
+	public KeySketches(String dataType, String group, SketchSpec spec) {
+		this.dataType = dataType;
+		this.group = group;
+		this.distincts = new HyperLogLog[spec.getDistinctFields().size()];
+		for (int i = 0; i < distincts.length; i++) {
+			distincts[i] = new HyperLogLog(spec.getHllPrecision());
+		}
+		this.frequencies = new CountMinSketch[spec.getFrequencyFields().size()];
+		for (int i = 0; i < frequencies.length; i++) {
+			frequencies[i] = new CountMinSketch(spec.getCmsWidth(), spec.getCmsDepth(), spec.getTopK());
+		}
+		this.quantiles = new KllSketch[spec.getQuantileFields().size()];
+		for (int i = 0; i < quantiles.length; i++) {
+			quantiles[i] = new KllSketch(spec.getKllK());
+		}
+	}
+
+	public void add(Map<String, Object> data, SketchSpec spec) {
+		count++;
+		List<String> fields = spec.getDistinctFields();
+		for (int i = 0; i < distincts.length; i++) {
+			Object value = data.get(fields.get(i));
+			if (value != null) {
+				distincts[i].add(spec.hash(value));
+			}
+		}
+		fields = spec.getFrequencyFields();
+		for (int i = 0; i < frequencies.length; i++) {
+			Object value = data.get(fields.get(i));
+			if (value != null) {
+				frequencies[i].add(value.toString());
+			}
+		}
+		fields = spec.getQuantileFields();
+		for (int i = 0; i < quantiles.length; i++) {
+			Object value = data.get(fields.get(i));
+			if (value instanceof Number) {
+				quantiles[i].add(((Number) value).doubleValue());
+			}
+		}
+	}
+
+	@Override
+	public void merge(KeySketches other) {
+		if (other.distincts.length != distincts.length || other.frequencies.length != frequencies.length
+				|| other.quantiles.length != quantiles.length) {
+			throw new IllegalArgumentException("Can not merge KeySketches of different fields, dataType=" + dataType);
+		}
+		count += other.count;
+		for (int i = 0; i < distincts.length; i++) {
+			distincts[i].merge(other.distincts[i]);
+		}
+		for (int i = 0; i < frequencies.length; i++) {
+			frequencies[i].merge(other.frequencies[i]);
+		}
+		for (int i = 0; i < quantiles.length; i++) {
+			quantiles[i].merge(other.quantiles[i]);
+		}
+	}
+
+	/**
+	 * The estimates as a result map: count, distinct, topK and quantiles by field.
+	 */
+	public Map<String, Object> toResult(SketchSpec spec) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("dataType", dataType);
+		result.put("group", group);
+		result.put("count", count);
+		if (distincts.length > 0) {
+			Map<String, Long> distinct = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < distincts.length; i++) {
+				distinct.put(spec.getDistinctFields().get(i), distincts[i].cardinality());
+			}
+			result.put("distinct", distinct);
+		}
+		if (frequencies.length > 0) {
+			Map<String, Object> topK = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < frequencies.length; i++) {
+				topK.put(spec.getFrequencyFields().get(i), frequencies[i].getHeavyHitters());
+			}
+			result.put("topK", topK);
+		}
+		if (quantiles.length > 0) {
+			double[] qs = spec.getQuantiles();
+			Map<String, Object> quantile = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < quantiles.length; i++) {
+				KllSketch sketch = quantiles[i];
+				Map<String, Object> values = new LinkedHashMap<String, Object>();
+				values.put("count", sketch.getCount());
+				values.put("min", sketch.getMin());
+				values.put("max", sketch.getMax());
+				double[] estimates = sketch.quantiles(qs);
+				for (int j = 0; j < qs.length; j++) {
+					values.put(label(qs[j]), estimates[j]);
+				}
+				quantile.put(spec.getQuantileFields().get(i), values);
+			}
+			result.put("quantiles", quantile);
+		}
+		return result;
+	}
+
+	/**
+	 * The sketches serialized, for partial results to be merged elsewhere, see
+	 * {@link #fromBytes(byte[])}.
+	 */
+	public byte[] toBytes() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(this);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to serialize sketches of " + dataType + ":" + group, e);
+		}
+	}
+
+	public static KeySketches fromBytes(byte[] bytes) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			return (KeySketches) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalArgumentException("Invalid serialized sketches.", e);
+		}
+	}
+
+	private static String label(double q) {
+		// 0.5 -> p50, 0.999 -> p99.9
+		return "p" + BigDecimal.valueOf(q).movePointRight(2).stripTrailingZeros().toPlainString();
+	}
+
+	public String getDataType() {
+		return dataType;
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+}
@@ -0,0 +1,232 @@
+package com.github.zjzcn.ceper.processor.sketch;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * KLL quantile sketch. Values are kept in compactors of increasing weight, a full
+ * compactor sorts itself and promotes every other value to the next level. The
+ * rank error is about 1.7 / k with about 3k retained values, 200 gives ~1%.
+ * 
+ * @author zjzcn
+ *
+ */
+public class KllSketch implements Sketch<KllSketch> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final double DECAY = 2.0 / 3.0;
+
+	private static final int MIN_CAPACITY = 2;
+
+	private final int k;
+
+	private double[][] levels;
+
+	private int[] sizes;
+
+	private int levelCount;
+
+	private long count;
+
+	private double min = Double.NaN;
+
+	private double max = Double.NaN;
+
+	// xorshift state for the compaction coin, a Random is not worth its weight here
+	private long seed = 0x9E3779B97F4A7C15L;
+
+	public KllSketch(int k) {
+		if (k < 8) {
+			throw new IllegalArgumentException("KllSketch k must be at least 8, k=" + k);
+		}
+		this.k = k;
+		this.levels = new double[1][k];
+		this.sizes = new int[1];
+		this.levelCount = 1;
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (count == 0) {
+			min = value;
+			max = value;
+		} else {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		count++;
+		append(0, value);
+		if (sizes[0] >= capacity(0)) {
+			compress();
+		}
+	}
+
+	/**
+	 * The approximate value at rank q * count, q in [0, 1].
+	 */
+	public double quantile(double q) {
+		return quantiles(q)[0];
+	}
+
+	/**
+	 * Same as {@link #quantile(double)} for several q, sorting the retained values once.
+	 */
+	public double[] quantiles(double... qs) {
+		double[] result = new double[qs.length];
+		if (count == 0) {
+			Arrays.fill(result, Double.NaN);
+			return result;
+		}
+		int retained = 0;
+		for (int h = 0; h < levelCount; h++) {
+			retained += sizes[h];
+		}
+		double[] values = new double[retained];
+		long[] weights = new long[retained];
+		int n = 0;
+		for (int h = 0; h < levelCount; h++) {
+			for (int i = 0; i < sizes[h]; i++) {
+				values[n] = levels[h][i];
+				weights[n] = 1L << h;
+				n++;
+			}
+		}
+		sortByValue(values, weights);
+		long totalWeight = 0;
+		for (long weight : weights) {
+			totalWeight += weight;
+		}
+		for (int j = 0; j < qs.length; j++) {
+			result[j] = valueAtRank(values, weights, qs[j] * totalWeight);
+		}
+		return result;
+	}
+
+	private double valueAtRank(double[] values, long[] weights, double rank) {
+		if (rank <= 0) {
+			return min;
+		}
+		long cumulative = 0;
+		for (int i = 0; i < values.length; i++) {
+			cumulative += weights[i];
+			if (cumulative >= rank) {
+				return values[i];
+			}
+		}
+		return max;
+	}
+
+	@Override
+	public void merge(KllSketch other) {
+		if (other.k != k) {
+			throw new IllegalArgumentException("Can not merge KllSketch of k " + other.k + " into " + k);
+		}
+		if (other.count == 0) {
+			return;
+		}
+		for (int h = 0; h < other.levelCount; h++) {
+			while (levelCount <= h) {
+				addLevel();
+			}
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+		min = count == 0 ? other.min : Math.min(min, other.min);
+		max = count == 0 ? other.max : Math.max(max, other.max);
+		count += other.count;
+		compress();
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	private int capacity(int level) {
+		int depth = levelCount - level - 1;
+		return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(DECAY, depth)));
+	}
+
+	private void compress() {
+		boolean compacted;
+		do {
+			compacted = false;
+			for (int h = 0; h < levelCount; h++) {
+				if (sizes[h] >= capacity(h)) {
+					compact(h);
+					compacted = true;
+				}
+			}
+		} while (compacted);
+	}
+
+	private void compact(int level) {
+		if (level + 1 == levelCount) {
+			addLevel();
+		}
+		double[] values = levels[level];
+		int size = sizes[level];
+		Arrays.sort(values, 0, size);
+		// an odd value out stays behind at this level
+		int odd = size & 1;
+		int offset = nextCoin();
+		for (int i = odd + offset; i < size; i += 2) {
+			append(level + 1, values[i]);
+		}
+		sizes[level] = odd;
+	}
+
+	private void addLevel() {
+		levels = Arrays.copyOf(levels, levelCount + 1);
+		sizes = Arrays.copyOf(sizes, levelCount + 1);
+		levels[levelCount] = new double[MIN_CAPACITY];
+		levelCount++;
+	}
+
+	private void append(int level, double value) {
+		double[] values = levels[level];
+		if (sizes[level] == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+			levels[level] = values;
+		}
+		values[sizes[level]++] = value;
+	}
+
+	private int nextCoin() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (int) (seed & 1);
+	}
+
+	private static void sortByValue(double[] values, long[] weights) {
+		Integer[] order = new Integer[values.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final double[] keys = values.clone();
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(keys[o1], keys[o2]);
+			}
+		});
+		long[] sortedWeights = weights.clone();
+		for (int i = 0; i < order.length; i++) {
+			values[i] = keys[order[i]];
+			weights[i] = sortedWeights[order[i]];
+		}
+	}
+
+}
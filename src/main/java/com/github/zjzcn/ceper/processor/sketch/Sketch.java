@@ -0,0 +1,19 @@
+package com.github.zjzcn.ceper.processor.sketch;
+
+import java.io.Serializable;
+
+/**
+ * A fixed size summary of a stream. Sketches built with the same parameters on
+ * different nodes or windows can be merged into the sketch of the combined stream.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface Sketch<S extends Sketch<S>> extends Serializable {
+
+	/**
+	 * Adds the stream of other into this sketch, other is left unchanged.
+	 */
+	void merge(S other);
+
+}
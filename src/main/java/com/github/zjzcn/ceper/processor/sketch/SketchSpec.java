@@ -0,0 +1,121 @@
+package com.github.zjzcn.ceper.processor.sketch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.zjzcn.ceper.utils.HashUtils;
+import com.typesafe.config.Config;
+
+/**
+ * Which fields get which sketch and the sketch sizes, read from the processor config.
+ * Sketches can only be merged when they were built from equal specs.
+ * 
+ * @author zjzcn
+ *
+ */
+public class SketchSpec implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private List<String> distinctFields = new ArrayList<String>();
+
+	private List<String> frequencyFields = new ArrayList<String>();
+
+	private List<String> quantileFields = new ArrayList<String>();
+
+	private double[] quantiles = { 0.5, 0.9, 0.99 };
+
+	private int hllPrecision = 12;
+
+	private int cmsWidth = 512;
+
+	private int cmsDepth = 4;
+
+	private int topK = 10;
+
+	private int kllK = 200;
+
+	public static SketchSpec config(Config config) {
+		SketchSpec spec = new SketchSpec();
+		if (config.hasPath("distinct_fields")) {
+			spec.distinctFields = new ArrayList<String>(config.getStringList("distinct_fields"));
+		}
+		if (config.hasPath("frequency_fields")) {
+			spec.frequencyFields = new ArrayList<String>(config.getStringList("frequency_fields"));
+		}
+		if (config.hasPath("quantile_fields")) {
+			spec.quantileFields = new ArrayList<String>(config.getStringList("quantile_fields"));
+		}
+		if (config.hasPath("quantiles")) {
+			List<Double> list = config.getDoubleList("quantiles");
+			spec.quantiles = new double[list.size()];
+			for (int i = 0; i < list.size(); i++) {
+				spec.quantiles[i] = list.get(i);
+			}
+		}
+		if (config.hasPath("hll_precision")) {
+			spec.hllPrecision = config.getInt("hll_precision");
+		}
+		if (config.hasPath("cms_width")) {
+			spec.cmsWidth = config.getInt("cms_width");
+		}
+		if (config.hasPath("cms_depth")) {
+			spec.cmsDepth = config.getInt("cms_depth");
+		}
+		if (config.hasPath("top_k")) {
+			spec.topK = config.getInt("top_k");
+		}
+		if (config.hasPath("kll_k")) {
+			spec.kllK = config.getInt("kll_k");
+		}
+		if (spec.distinctFields.isEmpty() && spec.frequencyFields.isEmpty() && spec.quantileFields.isEmpty()) {
+			throw new IllegalArgumentException("Sketch processor needs one of distinct_fields, frequency_fields or quantile_fields.");
+		}
+		return spec;
+	}
+
+	long hash(Object value) {
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return HashUtils.mix64(((Number) value).longValue());
+		}
+		return HashUtils.hash64(value.toString());
+	}
+
+	public List<String> getDistinctFields() {
+		return distinctFields;
+	}
+
+	public List<String> getFrequencyFields() {
+		return frequencyFields;
+	}
+
+	public List<String> getQuantileFields() {
+		return quantileFields;
+	}
+
+	public double[] getQuantiles() {
+		return quantiles;
+	}
+
+	public int getHllPrecision() {
+		return hllPrecision;
+	}
+
+	public int getCmsWidth() {
+		return cmsWidth;
+	}
+
+	public int getCmsDepth() {
+		return cmsDepth;
+	}
+
+	public int getTopK() {
+		return topK;
+	}
+
+	public int getKllK() {
+		return kllK;
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.github.zjzcn.ceper.processor.window;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.zjzcn.ceper.processor.window.WindowStatement.SelectItem;
+
+/**
+ * The aggregates of one group window, per value slot. Reused for every group
+ * while a result is built.
+ * 
+ * @author zjzcn
+ *
+ */
+public class Aggregates {
+
+	long events;
+
+	final long[] counts;
+
+	final double[] sums;
+
+	final double[] mins;
+
+	final double[] maxs;
+
+	public Aggregates(int fieldCount) {
+		counts = new long[fieldCount];
+		sums = new double[fieldCount];
+		mins = new double[fieldCount];
+		maxs = new double[fieldCount];
+	}
+
+	public long getEvents() {
+		return events;
+	}
+
+	/**
+	 * The result row of the select items, aggregates of no values are null.
+	 */
+	public Map<String, Object> toRow(SelectItem[] items, Object[] groupValues) {
+		Map<String, Object> row = new LinkedHashMap<String, Object>(items.length * 4 / 3 + 1);
+		for (SelectItem item : items) {
+			int i = item.getIndex();
+			Object value;
+			switch (item.getFunction()) {
+			case GROUP:
+				value = groupValues[i];
+				break;
+			case COUNT_ALL:
+				value = events;
+				break;
+			case COUNT:
+				value = counts[i];
+				break;
+			case SUM:
+				value = counts[i] > 0 ? sums[i] : null;
+				break;
+			case AVG:
+				value = counts[i] > 0 ? sums[i] / counts[i] : null;
+				break;
+			case MIN:
+				value = counts[i] > 0 ? mins[i] : null;
+				break;
+			case MAX:
+				value = counts[i] > 0 ? maxs[i] : null;
+				break;
+			default:
+				throw new IllegalStateException("Unknown function " + item.getFunction());
+			}
+			row.put(item.getName(), value);
+		}
+		return row;
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.github.zjzcn.ceper.processor.window;
+
+import java.io.Serializable;
+
+/**
+ * The window of one group key. Not thread safe, callers synchronize on it.
+ * 
+ * @author zjzcn
+ *
+ */
+public abstract class GroupWindow implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// set when the group is dropped, an adder holding it must retry with a new one
+	private boolean removed;
+
+	/**
+	 * Adds an event, values hold NaN for missing fields.
+	 * 
+	 * @return true if a batch is full and should be emitted
+	 */
+	public abstract boolean add(long now, double[] values);
+
+	/**
+	 * The aggregates of the window as of now, dropping what is out of it.
+	 */
+	public abstract void aggregate(long now, Aggregates out);
+
+	public abstract boolean isEmpty(long now);
+
+	public abstract void reset();
+
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	public void remove() {
+		removed = true;
+	}
+
+	/**
+	 * A window of the statement's kind.
+	 */
+	public static GroupWindow create(WindowStatement statement, int timePanes) {
+		int fieldCount = statement.getValueFields().length;
+		switch (statement.getKind()) {
+		case TIME_BATCH:
+			// the finished batch and the one filling while the finished one is emitted
+			return new PaneWindow(statement.getSize(), 2, fieldCount);
+		case TIME:
+			long paneMs = Math.max(1, statement.getSize() / timePanes);
+			int panes = (int) ((statement.getSize() + paneMs - 1) / paneMs);
+			return new PaneWindow(paneMs, panes, fieldCount);
+		default:
+			return new RingWindow((int) statement.getSize(), fieldCount);
+		}
+	}
+
+}
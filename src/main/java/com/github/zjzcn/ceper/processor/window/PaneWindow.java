@@ -0,0 +1,198 @@
+package com.github.zjzcn.ceper.processor.window;
+
+import java.util.Arrays;
+
+/**
+ * A time window as a ring of panes, pane i covering [id * paneMs, (id + 1) * paneMs).
+ * A pane keeps count/sum/min/max per value slot in flat primitive arrays
+ * ([pane * fieldCount + field]), count and sum are also kept as running totals
+ * that are updated when a pane is added to and evicted.
+ * 
+ * Sliding time windows slide by whole panes, a tumbling batch is one pane.
+ * 
+ * @author zjzcn
+ *
+ */
+public class PaneWindow extends GroupWindow {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long paneMs;
+
+	private final int paneCount;
+
+	private final int fieldCount;
+
+	private final long[] paneIds;
+
+	private final long[] paneEvents;
+
+	private final long[] counts;
+
+	private final double[] sums;
+
+	private final double[] mins;
+
+	private final double[] maxs;
+
+	private long totalEvents;
+
+	private final long[] totalCounts;
+
+	private final double[] totalSums;
+
+	public PaneWindow(long paneMs, int paneCount, int fieldCount) {
+		this.paneMs = paneMs;
+		this.paneCount = paneCount;
+		this.fieldCount = fieldCount;
+		this.paneIds = new long[paneCount];
+		Arrays.fill(paneIds, -1);
+		this.paneEvents = new long[paneCount];
+		this.counts = new long[paneCount * fieldCount];
+		this.sums = new double[paneCount * fieldCount];
+		this.mins = new double[paneCount * fieldCount];
+		this.maxs = new double[paneCount * fieldCount];
+		this.totalCounts = new long[fieldCount];
+		this.totalSums = new double[fieldCount];
+	}
+
+	@Override
+	public boolean add(long now, double[] values) {
+		long paneId = now / paneMs;
+		int pane = (int) (paneId % paneCount);
+		if (paneIds[pane] != paneId) {
+			evict(pane);
+			paneIds[pane] = paneId;
+		}
+		paneEvents[pane]++;
+		totalEvents++;
+		int base = pane * fieldCount;
+		for (int f = 0; f < fieldCount; f++) {
+			double value = values[f];
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			int i = base + f;
+			if (counts[i] == 0) {
+				mins[i] = value;
+				maxs[i] = value;
+			} else {
+				if (value < mins[i]) {
+					mins[i] = value;
+				}
+				if (value > maxs[i]) {
+					maxs[i] = value;
+				}
+			}
+			counts[i]++;
+			sums[i] += value;
+			totalCounts[f]++;
+			totalSums[f] += value;
+		}
+		return false;
+	}
+
+	@Override
+	public void aggregate(long now, Aggregates out) {
+		expire(now);
+		out.events = totalEvents;
+		for (int f = 0; f < fieldCount; f++) {
+			out.counts[f] = totalCounts[f];
+			out.sums[f] = totalSums[f];
+			boolean first = true;
+			for (int pane = 0; pane < paneCount; pane++) {
+				int i = pane * fieldCount + f;
+				if (paneIds[pane] < 0 || counts[i] == 0) {
+					continue;
+				}
+				if (first) {
+					out.mins[f] = mins[i];
+					out.maxs[f] = maxs[i];
+					first = false;
+				} else {
+					out.mins[f] = Math.min(out.mins[f], mins[i]);
+					out.maxs[f] = Math.max(out.maxs[f], maxs[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The aggregates of one pane, the finished batch of a tumbling window.
+	 * 
+	 * @return false if the pane has no events
+	 */
+	public boolean aggregatePane(long paneId, Aggregates out) {
+		int pane = (int) (paneId % paneCount);
+		if (paneIds[pane] != paneId || paneEvents[pane] == 0) {
+			return false;
+		}
+		out.events = paneEvents[pane];
+		int base = pane * fieldCount;
+		for (int f = 0; f < fieldCount; f++) {
+			out.counts[f] = counts[base + f];
+			out.sums[f] = sums[base + f];
+			out.mins[f] = mins[base + f];
+			out.maxs[f] = maxs[base + f];
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the pane if it is still there, after its batch was emitted.
+	 */
+	public void evictPane(long paneId) {
+		int pane = (int) (paneId % paneCount);
+		if (paneIds[pane] == paneId) {
+			evict(pane);
+		}
+	}
+
+	public long paneId(long time) {
+		return time / paneMs;
+	}
+
+	@Override
+	public boolean isEmpty(long now) {
+		expire(now);
+		return totalEvents == 0;
+	}
+
+	@Override
+	public void reset() {
+		for (int pane = 0; pane < paneCount; pane++) {
+			evict(pane);
+		}
+	}
+
+	private void expire(long now) {
+		long oldest = now / paneMs - paneCount + 1;
+		for (int pane = 0; pane < paneCount; pane++) {
+			if (paneIds[pane] >= 0 && paneIds[pane] < oldest) {
+				evict(pane);
+			}
+		}
+	}
+
+	private void evict(int pane) {
+		if (paneIds[pane] < 0) {
+			return;
+		}
+		totalEvents -= paneEvents[pane];
+		paneEvents[pane] = 0;
+		int base = pane * fieldCount;
+		for (int f = 0; f < fieldCount; f++) {
+			int i = base + f;
+			totalCounts[f] -= counts[i];
+			totalSums[f] -= sums[i];
+			if (totalCounts[f] == 0) {
+				// no rounding residue in an empty window
+				totalSums[f] = 0;
+			}
+			counts[i] = 0;
+			sums[i] = 0;
+		}
+		paneIds[pane] = -1;
+	}
+
+}
@@ -0,0 +1,135 @@
+package com.github.zjzcn.ceper.processor.window;
+
+import java.util.Arrays;
+
+/**
+ * A length window: the last size events of the group in a primitive ring
+ * ([position * fieldCount + field], NaN for missing values). Count and sum are
+ * updated on add and evict, min and max are rescanned only when the evicted
+ * value was the current extreme.
+ * 
+ * As a batch it reports full every size events and is reset by the caller.
+ * 
+ * @author zjzcn
+ *
+ */
+public class RingWindow extends GroupWindow {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int size;
+
+	private final int fieldCount;
+
+	private final double[] values;
+
+	private int head;
+
+	private int length;
+
+	private final long[] counts;
+
+	private final double[] sums;
+
+	private final double[] mins;
+
+	private final double[] maxs;
+
+	private final boolean[] stale;
+
+	public RingWindow(int size, int fieldCount) {
+		this.size = size;
+		this.fieldCount = fieldCount;
+		this.values = new double[size * fieldCount];
+		this.counts = new long[fieldCount];
+		this.sums = new double[fieldCount];
+		this.mins = new double[fieldCount];
+		this.maxs = new double[fieldCount];
+		this.stale = new boolean[fieldCount];
+	}
+
+	@Override
+	public boolean add(long now, double[] newValues) {
+		int base = head * fieldCount;
+		boolean full = length == size;
+		for (int f = 0; f < fieldCount; f++) {
+			if (full) {
+				double old = values[base + f];
+				if (!Double.isNaN(old)) {
+					counts[f]--;
+					sums[f] -= old;
+					if (counts[f] == 0) {
+						sums[f] = 0;
+					}
+					if (old == mins[f] || old == maxs[f]) {
+						stale[f] = true;
+					}
+				}
+			}
+			double value = newValues[f];
+			values[base + f] = value;
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			if (counts[f] == 0 && !stale[f]) {
+				mins[f] = value;
+				maxs[f] = value;
+			} else {
+				mins[f] = Math.min(mins[f], value);
+				maxs[f] = Math.max(maxs[f], value);
+			}
+			counts[f]++;
+			sums[f] += value;
+		}
+		head = (head + 1) % size;
+		if (!full) {
+			length++;
+		}
+		return length == size;
+	}
+
+	@Override
+	public void aggregate(long now, Aggregates out) {
+		out.events = length;
+		for (int f = 0; f < fieldCount; f++) {
+			if (stale[f]) {
+				rescan(f);
+			}
+			out.counts[f] = counts[f];
+			out.sums[f] = sums[f];
+			out.mins[f] = mins[f];
+			out.maxs[f] = maxs[f];
+		}
+	}
+
+	private void rescan(int f) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int start = (head - length + size) % size;
+		for (int n = 0; n < length; n++) {
+			double value = values[((start + n) % size) * fieldCount + f];
+			if (!Double.isNaN(value)) {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+		}
+		mins[f] = min;
+		maxs[f] = max;
+		stale[f] = false;
+	}
+
+	@Override
+	public boolean isEmpty(long now) {
+		return length == 0;
+	}
+
+	@Override
+	public void reset() {
+		head = 0;
+		length = 0;
+		Arrays.fill(counts, 0);
+		Arrays.fill(sums, 0);
+		Arrays.fill(stale, false);
+	}
+
+}
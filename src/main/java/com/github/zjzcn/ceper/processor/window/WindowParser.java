@@ -0,0 +1,189 @@
+package com.github.zjzcn.ceper.processor.window;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.zjzcn.ceper.processor.predicate.Predicate;
+import com.github.zjzcn.ceper.processor.predicate.PredicateParser;
+import com.github.zjzcn.ceper.processor.predicate.Predicates;
+import com.github.zjzcn.ceper.processor.predicate.Token;
+import com.github.zjzcn.ceper.processor.window.WindowStatement.Function;
+import com.github.zjzcn.ceper.processor.window.WindowStatement.Kind;
+import com.github.zjzcn.ceper.processor.window.WindowStatement.SelectItem;
+
+/**
+ * Parses the aggregation subset of EPL:
+ * 
+ * <pre>
+ * 	select item [as alias], ... from dataType.win:window [where condition] [group by field, ...]
+ * 
+ * 	item: count(*) | count(field) | sum(field) | min(field) | max(field) | avg(field) | group by field
+ * 	window: time_batch(n unit) | time(n unit) | length_batch(n) | length(n)
+ * 	unit: msec | sec | min | hour and their long forms
+ * </pre>
+ * 
+ * The condition is a {@link PredicateParser} condition.
+ * 
+ * @author zjzcn
+ *
+ */
+public class WindowParser {
+
+	private static final String WINDOW_SUFFIX = ".win";
+
+	public static WindowStatement parse(String statement) {
+		PredicateParser parser = new PredicateParser(statement);
+		parser.expectKeyword("select");
+		List<Token> itemTokens = new ArrayList<Token>();
+		List<String[]> rawItems = new ArrayList<String[]>();
+		do {
+			itemTokens.add(parser.peek());
+			rawItems.add(selectItem(parser));
+		} while (parser.accept(Token.Type.COMMA));
+
+		parser.expectKeyword("from");
+		Token from = parser.peek();
+		String source = parser.identifier();
+		if (!source.toLowerCase().endsWith(WINDOW_SUFFIX) || !parser.accept(Token.Type.COLON)) {
+			throw parser.error(from, "Expected dataType.win:window(size)");
+		}
+		String dataType = source.substring(0, source.length() - WINDOW_SUFFIX.length());
+		Token kindToken = parser.peek();
+		Kind kind;
+		try {
+			kind = Kind.valueOf(parser.identifier().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw parser.error(kindToken, "Unsupported window, only time_batch, time, length_batch and length");
+		}
+		parser.expect(Token.Type.LPAREN);
+		long size = kind == Kind.TIME_BATCH || kind == Kind.TIME ? duration(parser) : count(parser);
+		parser.expect(Token.Type.RPAREN);
+
+		Predicate where = Predicates.TRUE;
+		if (parser.acceptKeyword("where")) {
+			where = parser.condition();
+		}
+		List<String> groupBy = new ArrayList<String>();
+		if (parser.acceptKeyword("group")) {
+			parser.expectKeyword("by");
+			do {
+				groupBy.add(parser.identifier());
+			} while (parser.accept(Token.Type.COMMA));
+		}
+		parser.expectEnd();
+
+		List<String> valueFields = new ArrayList<String>();
+		List<SelectItem> items = new ArrayList<SelectItem>();
+		for (int i = 0; i < rawItems.size(); i++) {
+			// function, field, alias
+			String[] raw = rawItems.get(i);
+			Function function = raw[0] == null ? Function.GROUP : Function.valueOf(raw[0].toUpperCase());
+			String name;
+			int index;
+			if (function == Function.GROUP) {
+				index = groupBy.indexOf(raw[1]);
+				if (index < 0) {
+					throw parser.error(itemTokens.get(i), "Field must be aggregated or in group by");
+				}
+				name = raw[1];
+			} else if (raw[1] == null) {
+				function = Function.COUNT_ALL;
+				index = -1;
+				name = "count(*)";
+			} else {
+				index = valueFields.indexOf(raw[1]);
+				if (index < 0) {
+					index = valueFields.size();
+					valueFields.add(raw[1]);
+				}
+				name = raw[0].toLowerCase() + "(" + raw[1] + ")";
+			}
+			items.add(new SelectItem(raw[2] != null ? raw[2] : name, function, index));
+		}
+		return new WindowStatement(dataType, kind, size, where, groupBy, valueFields, items);
+	}
+
+	private static String[] selectItem(PredicateParser parser) {
+		Token token = parser.peek();
+		String function = null;
+		String field = parser.identifier();
+		if (parser.accept(Token.Type.LPAREN)) {
+			function = field;
+			switch (function.toLowerCase()) {
+			case "count":
+				field = parser.accept(Token.Type.STAR) ? null : parser.identifier();
+				break;
+			case "sum":
+			case "min":
+			case "max":
+			case "avg":
+				field = parser.identifier();
+				break;
+			default:
+				throw parser.error(token, "Unsupported function");
+			}
+			parser.expect(Token.Type.RPAREN);
+		}
+		String alias = null;
+		if (parser.acceptKeyword("as")) {
+			alias = parser.identifier();
+		}
+		return new String[] { function, field, alias };
+	}
+
+	private static long duration(PredicateParser parser) {
+		Token token = parser.peek();
+		double value = number(parser);
+		long unit = 1000;
+		if (parser.peek().is(Token.Type.IDENT)) {
+			Token unitToken = parser.peek();
+			switch (parser.identifier().toLowerCase()) {
+			case "msec":
+			case "millisecond":
+			case "milliseconds":
+				unit = 1;
+				break;
+			case "sec":
+			case "second":
+			case "seconds":
+				unit = 1000;
+				break;
+			case "min":
+			case "minute":
+			case "minutes":
+				unit = 60 * 1000;
+				break;
+			case "hour":
+			case "hours":
+				unit = 60 * 60 * 1000;
+				break;
+			default:
+				throw parser.error(unitToken, "Unknown time unit");
+			}
+		}
+		long millis = Math.round(value * unit);
+		if (millis <= 0) {
+			throw parser.error(token, "Window size must be positive");
+		}
+		return millis;
+	}
+
+	private static long count(PredicateParser parser) {
+		Token token = parser.peek();
+		double value = number(parser);
+		if (value < 1 || value != Math.floor(value) || value > Integer.MAX_VALUE) {
+			throw parser.error(token, "Window length must be a positive integer");
+		}
+		return (long) value;
+	}
+
+	private static double number(PredicateParser parser) {
+		Token token = parser.peek();
+		Object value = parser.literal();
+		if (!(value instanceof Double)) {
+			throw parser.error(token, "Expected a number");
+		}
+		return (Double) value;
+	}
+
+}
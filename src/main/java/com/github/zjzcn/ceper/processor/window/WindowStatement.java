@@ -0,0 +1,127 @@
+package com.github.zjzcn.ceper.processor.window;
+
+import java.util.List;
+import java.util.Map;
+
+import com.github.zjzcn.ceper.processor.predicate.Predicate;
+
+/**
+ * A parsed aggregation rule, see {@link WindowParser}.
+ * 
+ * @author zjzcn
+ *
+ */
+public class WindowStatement {
+
+	public enum Kind {
+		TIME_BATCH, TIME, LENGTH_BATCH, LENGTH
+	}
+
+	public enum Function {
+		COUNT_ALL, COUNT, SUM, MIN, MAX, AVG, GROUP
+	}
+
+	private final String dataType;
+
+	private final Kind kind;
+
+	// milliseconds for the time kinds, events for the length kinds
+	private final long size;
+
+	private final Predicate where;
+
+	private final String[] groupBy;
+
+	// the fields aggregated by any function, the value slots of the windows
+	private final String[] valueFields;
+
+	private final SelectItem[] items;
+
+	WindowStatement(String dataType, Kind kind, long size, Predicate where, List<String> groupBy,
+			List<String> valueFields, List<SelectItem> items) {
+		this.dataType = dataType;
+		this.kind = kind;
+		this.size = size;
+		this.where = where;
+		this.groupBy = groupBy.toArray(new String[groupBy.size()]);
+		this.valueFields = valueFields.toArray(new String[valueFields.size()]);
+		this.items = items.toArray(new SelectItem[items.size()]);
+	}
+
+	/**
+	 * The aggregated field values of an event, NaN for missing or non numeric values.
+	 */
+	public double[] values(Map<String, Object> data) {
+		double[] values = new double[valueFields.length];
+		for (int i = 0; i < valueFields.length; i++) {
+			Object value = data.get(valueFields[i]);
+			values[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+		}
+		return values;
+	}
+
+	public boolean isBatch() {
+		return kind == Kind.TIME_BATCH || kind == Kind.LENGTH_BATCH;
+	}
+
+	public boolean isTime() {
+		return kind == Kind.TIME_BATCH || kind == Kind.TIME;
+	}
+
+	public String getDataType() {
+		return dataType;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public Predicate getWhere() {
+		return where;
+	}
+
+	public String[] getGroupBy() {
+		return groupBy;
+	}
+
+	public String[] getValueFields() {
+		return valueFields;
+	}
+
+	public SelectItem[] getItems() {
+		return items;
+	}
+
+	public static class SelectItem {
+
+		private final String name;
+
+		private final Function function;
+
+		// value slot, or group by position for GROUP
+		private final int index;
+
+		SelectItem(String name, Function function, int index) {
+			this.name = name;
+			this.function = function;
+			this.index = index;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Function getFunction() {
+			return function;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+	}
+
+}
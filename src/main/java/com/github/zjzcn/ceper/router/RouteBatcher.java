@@ -0,0 +1,187 @@
+package com.github.zjzcn.ceper.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.node.Node;
+import com.github.zjzcn.ceper.transport.Client;
+import com.github.zjzcn.ceper.transport.ClientManager;
+import com.github.zjzcn.ceper.transport.Future;
+import com.github.zjzcn.ceper.transport.FutureListener;
+import com.github.zjzcn.ceper.transport.Protocol;
+import com.github.zjzcn.ceper.transport.Request;
+
+/**
+ * Gathers events routed to the same remote node into one batch request.
+ * A batch is sent when it reaches batchSize events or when its first event
+ * has waited longer than lingerMs. The credits of the events are released when
+ * the remote node acked the batch, or failed when the batch failed, so their
+ * source redelivers them.
+ * 
+ * @author zjzcn
+ *
+ */
+public class RouteBatcher {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final ConcurrentMap<Node, Batch> batches = new ConcurrentHashMap<Node, Batch>();
+
+	private ScheduledExecutorService flushExecutor;
+
+	private final int batchSize;
+
+	private final long lingerMs;
+
+	public RouteBatcher(int batchSize, long lingerMs) {
+		this.batchSize = batchSize;
+		this.lingerMs = lingerMs;
+	}
+
+	public void start() {
+		flushExecutor = Executors.newSingleThreadScheduledExecutor();
+		flushExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushExpired();
+				} catch (Exception e) {
+					logger.error("Error while flushing route batches.", e);
+				}
+			}
+		}, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+		logger.info("RouteBatcher started, batchSize={}, lingerMs={}.", batchSize, lingerMs);
+	}
+
+	public void stop() {
+		if (flushExecutor != null) {
+			flushExecutor.shutdown();
+		}
+		flushAll();
+		logger.info("RouteBatcher stoped.");
+	}
+
+	public void add(Node node, SourceEvent event) {
+		Batch batch = batches.get(node);
+		if (batch == null) {
+			Batch newBatch = new Batch(node);
+			batch = batches.putIfAbsent(node, newBatch);
+			if (batch == null) {
+				batch = newBatch;
+			}
+		}
+		List<SourceEvent> events = batch.add(event);
+		if (events != null) {
+			send(node, events);
+		}
+	}
+
+	public void flushAll() {
+		for (Batch batch : batches.values()) {
+			List<SourceEvent> events = batch.drain(Long.MAX_VALUE);
+			if (events != null) {
+				send(batch.node, events);
+			}
+		}
+	}
+
+	private void flushExpired() {
+		long deadline = System.currentTimeMillis() - lingerMs;
+		for (Batch batch : batches.values()) {
+			List<SourceEvent> events = batch.drain(deadline);
+			if (events != null) {
+				send(batch.node, events);
+			}
+		}
+	}
+
+	private void send(final Node node, final List<SourceEvent> events) {
+		Client client = null;
+		try {
+			client = ClientManager.getClient(node.getHost(), node.getPort());
+			Request req = Protocol.buildMessageRequest(events);
+			client.sendAsync(req).addListener(new FutureListener() {
+				@Override
+				public void onComplete(Future future) throws Exception {
+					if (future.isSuccess()) {
+						releaseCredits(events);
+					} else {
+						failCredits(events);
+						logger.error("Error while routing {} events to node[{}].", events.size(), node, future.getException());
+					}
+				}
+			});
+		} catch (Exception e) {
+			failCredits(events);
+			logger.error("Error while routing {} events to node[{}].", events.size(), node, e);
+		} finally {
+			if (client != null) {
+				ClientManager.releaseClient(node.getHost(), node.getPort(), client);
+			}
+		}
+	}
+
+	private static void releaseCredits(List<SourceEvent> events) {
+		for (int i = 0, size = events.size(); i < size; i++) {
+			events.get(i).releaseCredit();
+		}
+	}
+
+	private static void failCredits(List<SourceEvent> events) {
+		for (int i = 0, size = events.size(); i < size; i++) {
+			events.get(i).failCredit();
+		}
+	}
+
+	private class Batch {
+
+		private final Node node;
+
+		private List<SourceEvent> events = new ArrayList<SourceEvent>(batchSize);
+
+		private long firstEventTime;
+
+		Batch(Node node) {
+			this.node = node;
+		}
+
+		/**
+		 * @return the full batch to send, or null if the batch still has room
+		 */
+		synchronized List<SourceEvent> add(SourceEvent event) {
+			if (events.isEmpty()) {
+				firstEventTime = System.currentTimeMillis();
+			}
+			events.add(event);
+			if (events.size() < batchSize) {
+				return null;
+			}
+			return swap();
+		}
+
+		/**
+		 * @return the pending events if the first one arrived before deadline, otherwise null
+		 */
+		synchronized List<SourceEvent> drain(long deadline) {
+			if (events.isEmpty() || firstEventTime > deadline) {
+				return null;
+			}
+			return swap();
+		}
+
+		private List<SourceEvent> swap() {
+			List<SourceEvent> full = events;
+			events = new ArrayList<SourceEvent>(batchSize);
+			return full;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.github.zjzcn.ceper.router;
 
 import java.net.BindException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -13,18 +14,21 @@ import com.github.zjzcn.ceper.node.Node;
 import com.github.zjzcn.ceper.node.NodeListener;
 import com.github.zjzcn.ceper.node.NodeManager;
 import com.github.zjzcn.ceper.processor.Processor;
+import com.github.zjzcn.ceper.router.route.HashRouteStrategy;
 import com.github.zjzcn.ceper.router.route.RouteStrategy;
 import com.github.zjzcn.ceper.router.route.RouteStrategyFactory;
+import com.github.zjzcn.ceper.router.selector.MultiProcessorSelector;
 import com.github.zjzcn.ceper.router.selector.ProcessorSelector;
 import com.github.zjzcn.ceper.router.selector.SelectorFactory;
-import com.github.zjzcn.ceper.transport.Client;
-import com.github.zjzcn.ceper.transport.ClientPool;
+import com.github.zjzcn.ceper.transport.ClientManager;
 import com.github.zjzcn.ceper.transport.MessageHandler;
 import com.github.zjzcn.ceper.transport.Protocol;
 import com.github.zjzcn.ceper.transport.Request;
 import com.github.zjzcn.ceper.transport.Response;
 import com.github.zjzcn.ceper.transport.Server;
+import com.github.zjzcn.ceper.transport.compression.CompressorFactory;
 import com.github.zjzcn.ceper.transport.netty.NettyServer;
+import com.github.zjzcn.ceper.transport.serialization.SerializerFactory;
 import com.github.zjzcn.ceper.utils.Assert;
 import com.typesafe.config.Config;
 
@@ -41,8 +45,22 @@ public class Router {
 	
 	private int routePort = Constants.DEFAULT_ROUTE_PORT;
 	
+	private int batchSize = Constants.DEFAULT_ROUTE_BATCH_SIZE;
+	
+	private long lingerMs = Constants.DEFAULT_ROUTE_LINGER_MS;
+	
+	private RouteBatcher batcher;
+	
 	private NodeListener listener;
 	
+	private NodeListener clientListener;
+	
+	private long handoffTimeoutMs = Constants.DEFAULT_HANDOFF_TIMEOUT_MS;
+	
+	private int handoffBufferSize = Constants.DEFAULT_HANDOFF_BUFFER_SIZE;
+	
+	private StateHandoff handoff;
+	
 	public void config(Config config) {
 		Config routeConfig = config.getConfig("route_strategy");
 		String routeType = routeConfig.getString("type");
@@ -54,7 +72,27 @@ public class Router {
 		selector = SelectorFactory.create(selectorType);
 		selector.config(selectorConfig);
 		
+		if(config.hasPath("route_batch_size")) {
+			batchSize = config.getInt("route_batch_size");
+		}
+		if(config.hasPath("route_linger_ms")) {
+			lingerMs = config.getLong("route_linger_ms");
+		}
+		if(config.hasPath("handoff_timeout_ms")) {
+			handoffTimeoutMs = config.getLong("handoff_timeout_ms");
+		}
+		if(config.hasPath("handoff_buffer_size")) {
+			handoffBufferSize = config.getInt("handoff_buffer_size");
+		}
+		// only the hash ring keeps a hashTag on one node
+		if(routeStrategy instanceof HashRouteStrategy) {
+			handoff = new StateHandoff(this, handoffTimeoutMs, handoffBufferSize);
+		}
+		
 		NodeManager.config(config);
+		ClientManager.config(config);
+		SerializerFactory.config(config);
+		CompressorFactory.config(config);
 	}
 	
 	public void start() {
@@ -66,9 +104,23 @@ public class Router {
 			@Override
 			public Response handleRequest(Request request) {
 				logger.debug("Request: {}", request);
-				if(request.getData() instanceof SourceEvent) {
+				Object data = request.getData();
+				if(request.getMessageType() == Protocol.MessageType.STATE_REQ) {
+					if(handoff != null) {
+						handoff.receive(data);
+					} else {
+						logger.warn("State hand-off received, but route strategy is not hash, ignore it.");
+					}
+					return Protocol.buildStateResponse(request.getRequestId());
+				}
+				if(data instanceof SourceEvent) {
 					// process remoting event
-					processInternal((SourceEvent)request.getData());
+					processInternal((SourceEvent)data, false);
+				} else if(data instanceof List) {
+					// process remoting event batch
+					for(Object event : (List<?>)data) {
+						processInternal((SourceEvent)event, false);
+					}
 				}
 				return Protocol.buildMessageResponse(request.getRequestId());
 			}
@@ -84,10 +136,38 @@ public class Router {
 		}
 		
 		selector.start();
+		
+		batcher = new RouteBatcher(batchSize, lingerMs);
+		batcher.start();
+		
+		if(handoff != null) {
+			handoff.start();
+			listener = NodeManager.subscribe(handoff);
+		}
+		clientListener = NodeManager.subscribe(new NodeListener() {
+			private Set<Node> lastNodes = NodeManager.getNodes();
+			@Override
+			public synchronized void childhanged(Set<Node> nodes) {
+				// close the clients of the departed nodes
+				for(Node node : lastNodes) {
+					if(!nodes.contains(node) && !node.equals(NodeManager.getCurrentNode())) {
+						logger.info("Node[{}] departed, remove its client.", node);
+						ClientManager.removeClient(node.getHost(), node.getPort());
+					}
+				}
+				lastNodes = nodes;
+			}
+		});
 	}
 	
 	public void stop() {
 		NodeManager.unsubscribe(listener);
+		NodeManager.unsubscribe(clientListener);
+		if(handoff != null) {
+			handoff.stop();
+		}
+		batcher.stop();
+		ClientManager.stop();
 		server.close();
 	}
 	
@@ -98,21 +178,13 @@ public class Router {
 		Node node = routeStrategy.route(event, nodes);
 		if(node == null) {
 			logger.debug("Not node for routing, routeStrategy={}, nodes={}", routeStrategy.getClass().getSimpleName(), nodes);
+			event.failCredit();
 			return;
 		}
 		if(NodeManager.isCurrentNode(node)) {
-			processInternal(event);
+			processInternal(event, true);
 		} else {
-			ClientPool pool = ClientPool.getPool(node.getHost(), node.getPort());
-			Client client = pool.getResource();
-			try {
-				Request req = Protocol.buildMessageRequest(event);
-				client.send(req);
-			} catch (Exception e) {
-				logger.error("Error while event routing to node[{}].", node, e);
-			} finally {
-				pool.returnResource(client);
-			}
+			batcher.add(node, event);
 		}
 	}
 	
@@ -128,9 +200,32 @@ public class Router {
 		return routePort;
 	}
 	
-	private void processInternal(SourceEvent event) {
-		Processor processor = selector.select(event, processors);
-		processor.process(event);
+	// canWait: false on the netty threads, which must not block
+	private void processInternal(SourceEvent event, boolean canWait) {
+		if(handoff != null && handoff.offer(event, canWait)) {
+			return;
+		}
+		processLocal(event);
+	}
+	
+	void processLocal(SourceEvent event) {
+		try {
+			if (selector instanceof MultiProcessorSelector) {
+				for (Processor processor : ((MultiProcessorSelector) selector).selectAll(event, processors)) {
+					// one failing processor does not keep the event from the others
+					try {
+						processor.process(event);
+					} catch (Exception e) {
+						logger.error("Error while processing event, processor={}, event={}", processor.getName(), event, e);
+					}
+				}
+			} else {
+				Processor processor = selector.select(event, processors);
+				processor.process(event);
+			}
+		} finally {
+			event.releaseCredit();
+		}
 	}
 
 }
@@ -0,0 +1,412 @@
+package com.github.zjzcn.ceper.router;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.node.Node;
+import com.github.zjzcn.ceper.node.NodeListener;
+import com.github.zjzcn.ceper.node.NodeManager;
+import com.github.zjzcn.ceper.processor.KeyedStateful;
+import com.github.zjzcn.ceper.processor.KeyedStateful.HashTagFilter;
+import com.github.zjzcn.ceper.processor.Processor;
+import com.github.zjzcn.ceper.transport.Client;
+import com.github.zjzcn.ceper.transport.ClientManager;
+import com.github.zjzcn.ceper.transport.Future;
+import com.github.zjzcn.ceper.transport.FutureListener;
+import com.github.zjzcn.ceper.transport.Protocol;
+import com.github.zjzcn.ceper.transport.Request;
+import com.github.zjzcn.ceper.utils.ConsistentHash;
+
+/**
+ * Moves the state of the {@link KeyedStateful} processors when the hash ring changes.
+ *
+ * On a new node view every node sends each other node of the ring one hand-off, the
+ * state of the hashTags it owned and that now belong to that node, empty if there is
+ * none. A node buffers the events of the hashTags it takes over until the hand-off of
+ * their old owner arrived, then it imports the state and replays the buffer on its
+ * own thread, not the netty one the hand-off came on, so the state is complete
+ * before the first event is processed. A full buffer blocks the source, buffers
+ * are released after timeoutMs in case a hand-off never comes.
+ *
+ * A hand-off carries the view it was sent for and a sequence growing per sender. One
+ * older than the last of its sender is dropped, one for a view this node has not seen
+ * yet is kept until this node gets there, so a stale state never replaces a newer one.
+ *
+ * The state of a node that left the ring is lost.
+ *
+ * @author zjzcn
+ *
+ */
+public class StateHandoff implements NodeListener {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Router router;
+
+	private final long timeoutMs;
+
+	private final int bufferSize;
+
+	// buffer timeouts and replays, off the netty threads a hand-off arrives on
+	private ScheduledExecutorService executor;
+
+	// the last node view, guarded by this
+	private Set<Node> nodes;
+
+	// hand-offs received before this node had the same view, guarded by this
+	private final Map<String, Early> early = new HashMap<String, Early>();
+
+	// the last hand-off sequence per sender, guarded by this
+	private final Map<String, Long> seqs = new HashMap<String, Long>();
+
+	private long lastSeq;
+
+	private volatile Pending pending;
+
+	public StateHandoff(Router router, long timeoutMs, int bufferSize) {
+		this.router = router;
+		this.timeoutMs = timeoutMs;
+		this.bufferSize = bufferSize;
+	}
+
+	public void start() {
+		executor = Executors.newSingleThreadScheduledExecutor();
+		logger.info("StateHandoff started, timeoutMs={}, bufferSize={}.", timeoutMs, bufferSize);
+	}
+
+	public void stop() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		Pending p = pending;
+		if (p != null) {
+			release(p);
+		}
+		logger.info("StateHandoff stoped.");
+	}
+
+	@Override
+	public synchronized void childhanged(Set<Node> newNodes) {
+		Node current = NodeManager.getCurrentNode();
+		if (current == null) {
+			return;
+		}
+		Set<Node> oldNodes = nodes;
+		if (oldNodes == null) {
+			// the first view: this node just joined
+			oldNodes = new HashSet<Node>(newNodes);
+			oldNodes.remove(current);
+		}
+		if (oldNodes.equals(newNodes)) {
+			return;
+		}
+		nodes = new HashSet<Node>(newNodes);
+		Set<String> view = nodeIds(newNodes);
+		logger.info("Node view changed, oldNodes={}, newNodes={}.", oldNodes, newNodes);
+
+		Pending last = pending;
+		if (last != null) {
+			release(last);
+		}
+
+		ConsistentHash<Node> oldRing = new ConsistentHash<Node>(ConsistentHash.DEFAULT_CONSISTENT_HASH_REPLICAS, oldNodes);
+		ConsistentHash<Node> newRing = new ConsistentHash<Node>(ConsistentHash.DEFAULT_CONSISTENT_HASH_REPLICAS, newNodes);
+
+		// the hand-offs for this view that came early, the others are outdated now
+		Set<String> received = new HashSet<String>();
+		for (Map.Entry<String, Early> entry : early.entrySet()) {
+			if (view.equals(entry.getValue().view)) {
+				importStates(entry.getKey(), entry.getValue().states);
+				received.add(entry.getKey());
+			}
+		}
+		early.clear();
+
+		// wait for the alive old owners, unless their hand-off for this view is already here
+		Map<String, List<SourceEvent>> buffers = new HashMap<String, List<SourceEvent>>();
+		for (Node node : oldNodes) {
+			String nodeId = node.toNodeId();
+			if (!node.equals(current) && newNodes.contains(node) && !received.contains(nodeId)) {
+				buffers.put(nodeId, new ArrayList<SourceEvent>());
+			}
+		}
+		if (!buffers.isEmpty()) {
+			final Pending p = new Pending(oldRing, newRing, current, buffers);
+			pending = p;
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (pending == p) {
+						logger.warn("State hand-off timeout, releasing buffered events, waiting for={}.", p.buffers.keySet());
+						release(p);
+					}
+				}
+			}, timeoutMs, TimeUnit.MILLISECONDS);
+		}
+
+		if (oldNodes.contains(current)) {
+			// survives restarts, unlike a counter
+			lastSeq = Math.max(lastSeq + 1, System.currentTimeMillis());
+			for (Node target : newNodes) {
+				if (!target.equals(current)) {
+					send(target, view, lastSeq, exportStates(oldRing, newRing, current, target));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A full buffer blocks a caller that can wait, a source thread holding the credit
+	 * of the event, until the state arrived or the buffers were released. The others,
+	 * netty threads with events of other nodes, buffer past bufferSize.
+	 * 
+	 * @return true if the event is buffered until the state of its hashTag arrived
+	 */
+	public boolean offer(SourceEvent event, boolean canWait) {
+		Pending p = pending;
+		if (p == null || event.getHashTag() == null) {
+			return false;
+		}
+		synchronized (p) {
+			while (true) {
+				if (p.released) {
+					return false;
+				}
+				Node oldOwner = p.oldRing.get(event.getHashTag());
+				if (oldOwner == null) {
+					return false;
+				}
+				List<SourceEvent> buffer = p.buffers.get(oldOwner.toNodeId());
+				if (buffer == null || !p.current.equals(p.newRing.get(event.getHashTag()))) {
+					return false;
+				}
+				if (buffer.size() < bufferSize || !canWait) {
+					buffer.add(event);
+					return true;
+				}
+				// processed now, the event would be lost when the state arrives
+				try {
+					p.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					buffer.add(event);
+					return true;
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void receive(Object data) {
+		Map<String, Object> handoff = (Map<String, Object>) data;
+		String from = (String) handoff.get("from");
+		Set<String> view = new TreeSet<String>((List<String>) handoff.get("nodes"));
+		long seq = ((Number) handoff.get("seq")).longValue();
+		Map<String, byte[]> states = (Map<String, byte[]>) handoff.get("states");
+
+		Pending p;
+		synchronized (this) {
+			Long last = seqs.get(from);
+			if (last != null && seq <= last) {
+				logger.warn("Dropped an outdated state hand-off from node[{}], view={}.", from, view);
+				return;
+			}
+			seqs.put(from, seq);
+			if (!view.equals(nodeIds(nodes))) {
+				// for a view this node has not seen yet, imported once it gets there
+				early.put(from, new Early(view, states));
+				return;
+			}
+			importStates(from, states);
+			p = pending;
+		}
+		if (p == null) {
+			return;
+		}
+		final Pending released = p;
+		final String sender = from;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				release(released, sender);
+			}
+		});
+	}
+
+	// replays the events waiting for the hand-off of the sender
+	private void release(Pending p, String from) {
+		synchronized (p) {
+			List<SourceEvent> buffer = p.buffers.remove(from);
+			if (buffer != null && !p.released) {
+				replay(buffer);
+			}
+			if (p.buffers.isEmpty()) {
+				p.released = true;
+				if (pending == p) {
+					pending = null;
+				}
+			}
+			p.notifyAll();
+		}
+	}
+
+	private void release(Pending p) {
+		synchronized (p) {
+			if (!p.released) {
+				for (List<SourceEvent> buffer : p.buffers.values()) {
+					replay(buffer);
+				}
+				p.buffers.clear();
+				p.released = true;
+			}
+			if (pending == p) {
+				pending = null;
+			}
+			p.notifyAll();
+		}
+	}
+
+	private void replay(List<SourceEvent> buffer) {
+		for (SourceEvent event : buffer) {
+			try {
+				router.processLocal(event);
+			} catch (Exception e) {
+				logger.error("Error while replaying buffered event, event={}", event, e);
+			}
+		}
+	}
+
+	private Map<String, byte[]> exportStates(final ConsistentHash<Node> oldRing, final ConsistentHash<Node> newRing,
+			final Node current, final Node target) {
+		HashTagFilter filter = new HashTagFilter() {
+			@Override
+			public boolean accept(String hashTag) {
+				return hashTag != null && target.equals(newRing.get(hashTag)) && current.equals(oldRing.get(hashTag));
+			}
+		};
+		Map<String, byte[]> states = new HashMap<String, byte[]>();
+		for (Processor processor : processors()) {
+			if (processor instanceof KeyedStateful) {
+				try {
+					byte[] state = ((KeyedStateful) processor).exportState(filter);
+					if (state != null) {
+						states.put(processor.getName(), state);
+					}
+				} catch (IOException e) {
+					logger.error("Error while exporting state of processor[{}] for node[{}].", processor.getName(), target, e);
+				}
+			}
+		}
+		return states;
+	}
+
+	private void importStates(String from, Map<String, byte[]> states) {
+		Map<String, Processor> processors = new HashMap<String, Processor>();
+		for (Processor processor : processors()) {
+			processors.put(processor.getName(), processor);
+		}
+		for (Map.Entry<String, byte[]> entry : states.entrySet()) {
+			Processor processor = processors.get(entry.getKey());
+			if (!(processor instanceof KeyedStateful)) {
+				logger.warn("No keyed processor[{}] for the state from node[{}].", entry.getKey(), from);
+				continue;
+			}
+			try {
+				((KeyedStateful) processor).importState(entry.getValue());
+			} catch (IOException e) {
+				logger.error("Error while importing state of processor[{}] from node[{}].", entry.getKey(), from, e);
+			}
+		}
+		logger.info("Imported state from node[{}], processors={}.", from, states.keySet());
+	}
+
+	private void send(final Node node, Set<String> view, long seq, Map<String, byte[]> states) {
+		Map<String, Object> handoff = new HashMap<String, Object>();
+		handoff.put("from", NodeManager.getCurrentNode().toNodeId());
+		handoff.put("nodes", new ArrayList<String>(view));
+		handoff.put("seq", seq);
+		handoff.put("states", states);
+		Client client = null;
+		try {
+			client = ClientManager.getClient(node.getHost(), node.getPort());
+			Request req = Protocol.buildStateRequest(handoff);
+			client.sendAsync(req).addListener(new FutureListener() {
+				@Override
+				public void onComplete(Future future) throws Exception {
+					if (!future.isSuccess()) {
+						logger.error("Error while handing off state to node[{}].", node, future.getException());
+					}
+				}
+			});
+		} catch (Exception e) {
+			logger.error("Error while handing off state to node[{}].", node, e);
+		} finally {
+			if (client != null) {
+				ClientManager.releaseClient(node.getHost(), node.getPort(), client);
+			}
+		}
+	}
+
+	private Collection<Processor> processors() {
+		Collection<Processor> processors = router.getProcessors();
+		return processors != null ? processors : new ArrayList<Processor>();
+	}
+
+	private static Set<String> nodeIds(Set<Node> nodes) {
+		Set<String> ids = new TreeSet<String>();
+		if (nodes != null) {
+			for (Node node : nodes) {
+				ids.add(node.toNodeId());
+			}
+		}
+		return ids;
+	}
+
+	private static class Early {
+
+		final Set<String> view;
+
+		final Map<String, byte[]> states;
+
+		Early(Set<String> view, Map<String, byte[]> states) {
+			this.view = view;
+			this.states = states;
+		}
+	}
+
+	private static class Pending {
+
+		final ConsistentHash<Node> oldRing;
+
+		final ConsistentHash<Node> newRing;
+
+		final Node current;
+
+		// old owner -> buffered events of the hashTags it hands off
+		final Map<String, List<SourceEvent>> buffers;
+
+		boolean released;
+
+		Pending(ConsistentHash<Node> oldRing, ConsistentHash<Node> newRing, Node current,
+				Map<String, List<SourceEvent>> buffers) {
+			this.oldRing = oldRing;
+			this.newRing = newRing;
+			this.current = current;
+			this.buffers = buffers;
+		}
+	}
+}
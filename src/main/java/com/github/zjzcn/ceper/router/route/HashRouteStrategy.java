@@ -1,7 +1,6 @@
 package com.github.zjzcn.ceper.router.route;
 
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,7 +11,8 @@ import com.github.zjzcn.ceper.utils.ConsistentHash;
 import com.typesafe.config.Config;
 
 /**
- * consistent hashing
+ * consistent hashing, the ring is rebuilt only when another node set comes in
+ * (compared by identity first, see {@link com.github.zjzcn.ceper.node.NodeManager#getNodes()})
  * @author zjzcn
  *
  */
@@ -20,23 +20,24 @@ public class HashRouteStrategy implements RouteStrategy {
 
 	private static final Logger logger = LoggerFactory.getLogger(HashRouteStrategy.class);
 	
-	private ConsistentHash<Node> hash;
-	
-	private Set<Node> cachedNodes = new CopyOnWriteArraySet<>();
+	private volatile Ring ring = new Ring(null, new ConsistentHash<Node>());
 	
 	@Override
 	public void config(Config config) {
-		hash = new ConsistentHash<Node>();
 	}
 	
 	@Override
 	public Node route(SourceEvent event, Set<Node> nodes) {
-		if(!equels(nodes, cachedNodes)) {
-			cachedNodes.clear();
-			cachedNodes.addAll(nodes);
-			hash.removeAll();
-			hash.addAll(nodes);
+		Ring r = ring;
+		if(r.nodes != nodes) {
+			if(r.nodes != null && equels(nodes, r.nodes)) {
+				r = new Ring(nodes, r.hash);
+			} else {
+				r = new Ring(nodes, new ConsistentHash<Node>(ConsistentHash.DEFAULT_CONSISTENT_HASH_REPLICAS, nodes));
+			}
+			ring = r;
 		}
+		ConsistentHash<Node> hash = r.hash;
 		if(event.getHashTag() == null && event.getDataType() == null) {
 			logger.warn("DataType and hashTag is null, can not route. event={}", event);
 			return null;
@@ -62,4 +63,16 @@ public class HashRouteStrategy implements RouteStrategy {
 			return false;
 		}
 	}
+	
+	private static final class Ring {
+		
+		final Set<Node> nodes;
+		
+		final ConsistentHash<Node> hash;
+		
+		Ring(Set<Node> nodes, ConsistentHash<Node> hash) {
+			this.nodes = nodes;
+			this.hash = hash;
+		}
+	}
 }
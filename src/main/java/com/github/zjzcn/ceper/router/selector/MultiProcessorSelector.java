@@ -0,0 +1,22 @@
+package com.github.zjzcn.ceper.router.selector;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.processor.Processor;
+
+/**
+ * A selector that may hand an event to several processors, the router calls
+ * selectAll instead of select.
+ *
+ * @author zjzcn
+ *
+ */
+public interface MultiProcessorSelector extends ProcessorSelector {
+
+	/**
+	 * @return the processors of the event, empty if there is none, not modified by the caller
+	 */
+	List<Processor> selectAll(SourceEvent event, Collection<Processor> processors);
+}
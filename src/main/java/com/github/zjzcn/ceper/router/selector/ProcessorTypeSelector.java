@@ -0,0 +1,148 @@
+package com.github.zjzcn.ceper.router.selector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.processor.Processor;
+import com.github.zjzcn.ceper.rule.Defination;
+import com.github.zjzcn.ceper.rule.Rule;
+import com.github.zjzcn.ceper.rule.RuleListener;
+import com.github.zjzcn.ceper.rule.RuleManager;
+import com.typesafe.config.Config;
+
+/**
+ * Fans an event out to every processor whose processorType has a rule for the
+ * dataType of the event, taken from the rule definations. A processorType with a
+ * rule without definations (predicate and window rules name their dataType in the
+ * statement) gets every dataType and filters itself.
+ *
+ * The processor types of broadcast_types, the ones without rules like outlier and
+ * sketch, get every event.
+ *
+ * @author zjzcn
+ *
+ */
+public class ProcessorTypeSelector implements MultiProcessorSelector {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final String ALL_DATA_TYPES = "*";
+
+	private Set<String> broadcastTypes = new HashSet<String>();
+
+	// replaced as a whole on rule changes, with its cache
+	private volatile Mappings mappings = new Mappings(new HashMap<String, Set<String>>());
+
+	private RuleListener listener;
+
+	@Override
+	public void config(Config config) {
+		if (config.hasPath("broadcast_types")) {
+			broadcastTypes = new HashSet<String>(config.getStringList("broadcast_types"));
+		}
+	}
+
+	@Override
+	public void start() {
+		listener = RuleManager.subscribe(new RuleListener() {
+			@Override
+			public void childhanged(Set<Rule> rules) {
+				applyRules(rules);
+			}
+		});
+		applyRules(RuleManager.getRules());
+	}
+
+	@Override
+	public void stop() {
+		RuleManager.unsubscribe(listener);
+	}
+
+	@Override
+	public Processor select(SourceEvent event, Collection<Processor> processors) {
+		List<Processor> list = selectAll(event, processors);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	@Override
+	public List<Processor> selectAll(SourceEvent event, Collection<Processor> processors) {
+		String dataType = event.getDataType();
+		if (dataType == null) {
+			dataType = "";
+		}
+		Mappings m = mappings;
+		List<Processor> list = m.selected.get(dataType);
+		if (list == null) {
+			list = resolve(m.types, dataType, processors);
+			m.selected.put(dataType, list);
+			if (list.isEmpty()) {
+				logger.warn("Not found processor, dataType={}, mappings={}", dataType, m.types);
+			}
+		}
+		return list;
+	}
+
+	private List<Processor> resolve(Map<String, Set<String>> m, String dataType, Collection<Processor> processors) {
+		Set<String> types = new HashSet<String>(broadcastTypes);
+		if (m.containsKey(dataType)) {
+			types.addAll(m.get(dataType));
+		}
+		if (m.containsKey(ALL_DATA_TYPES)) {
+			types.addAll(m.get(ALL_DATA_TYPES));
+		}
+		List<Processor> list = new ArrayList<Processor>();
+		for (Processor processor : processors) {
+			if (types.contains(processor.getProcessorType())) {
+				list.add(processor);
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	private synchronized void applyRules(Set<Rule> rules) {
+		Map<String, Set<String>> m = new HashMap<String, Set<String>>();
+		for (Rule rule : rules) {
+			if (rule.getDefinations().isEmpty()) {
+				addMapping(m, ALL_DATA_TYPES, rule.getProcessorType());
+			}
+			for (Defination def : rule.getDefinations()) {
+				addMapping(m, def.getDataType(), rule.getProcessorType());
+			}
+		}
+		mappings = new Mappings(m);
+		logger.info("Applied processor type mappings, mappings={}, broadcastTypes={}", m, broadcastTypes);
+	}
+
+	private static void addMapping(Map<String, Set<String>> m, String dataType, String processorType) {
+		Set<String> types = m.get(dataType);
+		if (types == null) {
+			types = new HashSet<String>();
+			m.put(dataType, types);
+		}
+		types.add(processorType);
+	}
+
+	private static final class Mappings {
+
+		// Map<dataType, processorTypes>
+		final Map<String, Set<String>> types;
+
+		// Map<dataType, processors>, computed from types on first use
+		final Map<String, List<Processor>> selected = new ConcurrentHashMap<String, List<Processor>>();
+
+		Mappings(Map<String, Set<String>> types) {
+			this.types = types;
+		}
+	}
+}
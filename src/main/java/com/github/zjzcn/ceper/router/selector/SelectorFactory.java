@@ -22,6 +22,9 @@ public class SelectorFactory {
 			case "static":
 				selector = new StaticSourceSelector();
 				break;
+			case "type":
+				selector = new ProcessorTypeSelector();
+				break;
 			default:
 				selector = (ProcessorSelector) ClassUtils.newInstance(type);
 				break;
@@ -13,7 +13,7 @@ public class Rule extends BaseBean {
 	
 	private String statementId;
 	/*
-	 * processor: esper/outlier
+	 * processor: esper/outlier/predicate/window
 	 */
 	private String processorType; 
 	
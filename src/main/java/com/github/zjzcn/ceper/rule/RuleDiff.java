@@ -0,0 +1,101 @@
+package com.github.zjzcn.ceper.rule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.zjzcn.ceper.utils.StringUtils;
+
+/**
+ * Difference between the active rules and a new rule set, keyed by statementId.
+ * A rule is changed when its statement text or its definations differ.
+ * 
+ * @author zjzcn
+ *
+ */
+public class RuleDiff {
+
+	private final List<Rule> added = new ArrayList<Rule>();
+	
+	private final List<Rule> removed = new ArrayList<Rule>();
+	
+	private final List<Rule> changed = new ArrayList<Rule>();
+	
+	/**
+	 * @param current active rules by statementId
+	 * @param rules the new rule set
+	 */
+	public static RuleDiff diff(Map<String, Rule> current, Collection<Rule> rules) {
+		RuleDiff diff = new RuleDiff();
+		Set<String> statementIds = new HashSet<String>();
+		for (Rule rule : rules) {
+			statementIds.add(rule.getStatementId());
+			Rule old = current.get(rule.getStatementId());
+			if (old == null) {
+				diff.added.add(rule);
+			} else if (!sameRule(old, rule)) {
+				diff.changed.add(rule);
+			}
+		}
+		for (Rule old : current.values()) {
+			if (!statementIds.contains(old.getStatementId())) {
+				diff.removed.add(old);
+			}
+		}
+		return diff;
+	}
+	
+	private static boolean sameRule(Rule old, Rule rule) {
+		if (!StringUtils.equals(old.getStatement(), rule.getStatement())) {
+			return false;
+		}
+		// Defination equality is by dataType only, compare the fields as well
+		Set<Defination> oldDefs = old.getDefinations();
+		Set<Defination> defs = rule.getDefinations();
+		int oldSize = oldDefs == null ? 0 : oldDefs.size();
+		int size = defs == null ? 0 : defs.size();
+		if (oldSize != size) {
+			return false;
+		}
+		if (size == 0) {
+			return true;
+		}
+		for (Defination def : defs) {
+			Defination oldDef = null;
+			for (Defination candidate : oldDefs) {
+				if (candidate.equals(def)) {
+					oldDef = candidate;
+					break;
+				}
+			}
+			if (oldDef == null || !oldDef.getFieldMap().equals(def.getFieldMap())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public List<Rule> getAdded() {
+		return added;
+	}
+
+	public List<Rule> getRemoved() {
+		return removed;
+	}
+
+	public List<Rule> getChanged() {
+		return changed;
+	}
+	
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "RuleDiff [added=" + added.size() + ", removed=" + removed.size() + ", changed=" + changed.size() + "]";
+	}
+}
@@ -2,6 +2,7 @@ package com.github.zjzcn.ceper.sink;
 
 import java.util.List;
 
+import com.github.zjzcn.ceper.event.ResultEvent;
 import com.github.zjzcn.ceper.processor.Processor;
 
 public abstract class AbstractSink implements Sink {
@@ -30,6 +31,16 @@ public abstract class AbstractSink implements Sink {
 		return processors;
 	}
 
+	/**
+	 * Delivers one by one, sinks with a real batch path override this.
+	 */
+	@Override
+	public void process(List<ResultEvent> events) {
+		for (int i = 0, size = events.size(); i < size; i++) {
+			process(events.get(i));
+		}
+	}
+
 	
 
 }
\ No newline at end of file
@@ -1,27 +1,48 @@
 package com.github.zjzcn.ceper.sink;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.zjzcn.ceper.event.ResultEvent;
-import com.github.zjzcn.ceper.utils.JsonUtils;
+import com.github.zjzcn.ceper.monitor.Metric;
+import com.github.zjzcn.ceper.monitor.MetricCollector;
 import com.typesafe.config.Config;
 
+/**
+ * Sends results asynchronously, keyed by statementId or by the key_field of the
+ * first result row, so the results of one key stay in one partition. Delivery
+ * callbacks feed the success/failure/latency metrics.
+ * 
+ * @author zjzcn
+ *
+ */
 public class KafkaSink extends AbstractSink {
 	
 	private static final Logger logger = LoggerFactory.getLogger(KafkaSink.class);
 
 
-	private Producer<String, String> producer;
+	private Producer<String, ResultEvent> producer;
 
 	private Properties props = new Properties();
 	private String topic;
+	private String keyField;
+	
+	private final AtomicLong successCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong latencySumMs = new AtomicLong();
+	private final AtomicLong latencyMaxMs = new AtomicLong();
 	
 	@Override
 	public void config(Config config) {
@@ -49,18 +70,47 @@ public class KafkaSink extends AbstractSink {
 			props.put(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, config.getString("max_request_size"));
 		}
 		
+		if(config.hasPath("compression_type")) {
+			props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, config.getString("compression_type"));
+		}
+		
+		if(config.hasPath("linger_ms")) {
+			props.put(ProducerConfig.LINGER_MS_CONFIG, config.getString("linger_ms"));
+		}
+		
+		if(config.hasPath("buffer_memory")) {
+			props.put(ProducerConfig.BUFFER_MEMORY_CONFIG, config.getString("buffer_memory"));
+		}
+		
+		if(config.hasPath("key_field")) {
+			keyField = config.getString("key_field");
+		}
+		
 		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
-		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ResultEventSerializer.class.getName());
 	}
 
 	@Override
 	public void start() {
 		logger.info("Starting kafka sink {}.", getName());
 		try {
-			producer = new KafkaProducer<String, String>(props);
+			producer = new KafkaProducer<String, ResultEvent>(props);
 		} catch (Exception e) {
 			throw new IllegalStateException("Unable to create kafka producer.", e);
 		}
+		new MetricCollector() {
+			@Override
+			public List<Metric> collect() {
+				String prefix = "sink." + getName() + ".kafka.";
+				long success = successCount.get();
+				List<Metric> metrics = new ArrayList<Metric>(4);
+				metrics.add(new Metric(prefix + "success", String.valueOf(success)));
+				metrics.add(new Metric(prefix + "failure", String.valueOf(failureCount.get())));
+				metrics.add(new Metric(prefix + "latency_avg_ms", String.valueOf(success == 0 ? 0 : latencySumMs.get() / success)));
+				metrics.add(new Metric(prefix + "latency_max_ms", String.valueOf(latencyMaxMs.getAndSet(0))));
+				return metrics;
+			}
+		};
 		logger.info("Kafka sink started.");
 	}
 
@@ -78,13 +128,54 @@ public class KafkaSink extends AbstractSink {
 	@Override
 	public void process(ResultEvent event) {
 		try {
-			ProducerRecord<String, String> record = new ProducerRecord<String, String>(topic, JsonUtils.toJsonString(event));
+			ProducerRecord<String, ResultEvent> record = new ProducerRecord<String, ResultEvent>(topic, keyOf(event), event);
 			logger.debug("Message sending to kafka, record={}.", record);
-			producer.send(record);
-			logger.debug("Message sent to kafka.");
+			producer.send(record, new DeliveryCallback(System.currentTimeMillis()));
 		} catch (Exception ex) {
+			failureCount.incrementAndGet();
 			logger.error("Failed while sending message to kafka.", ex);
 		}
 	}
+	
+	private String keyOf(ResultEvent event) {
+		if (keyField != null) {
+			Object result = event.getResult();
+			if (result instanceof List && !((List<?>) result).isEmpty()) {
+				result = ((List<?>) result).get(0);
+			}
+			if (result instanceof Map) {
+				Object key = ((Map<?, ?>) result).get(keyField);
+				if (key != null) {
+					return key.toString();
+				}
+			}
+		}
+		return event.getStatementId();
+	}
+	
+	private class DeliveryCallback implements Callback {
+		
+		private final long sendTime;
+		
+		DeliveryCallback(long sendTime) {
+			this.sendTime = sendTime;
+		}
+		
+		@Override
+		public void onCompletion(RecordMetadata metadata, Exception exception) {
+			if (exception != null) {
+				failureCount.incrementAndGet();
+				logger.error("Failed to deliver message to kafka, topic=" + topic, exception);
+				return;
+			}
+			successCount.incrementAndGet();
+			long latency = System.currentTimeMillis() - sendTime;
+			latencySumMs.addAndGet(latency);
+			long max;
+			while (latency > (max = latencyMaxMs.get()) && !latencyMaxMs.compareAndSet(max, latency)) {
+				// retry
+			}
+		}
+	}
 
 }
@@ -0,0 +1,50 @@
+package com.github.zjzcn.ceper.sink;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.kafka.common.serialization.Serializer;
+
+import com.alibaba.fastjson.serializer.JSONSerializer;
+import com.alibaba.fastjson.serializer.SerializeWriter;
+import com.github.zjzcn.ceper.event.ResultEvent;
+
+/**
+ * Kafka value serializer writing a ResultEvent as UTF-8 JSON.
+ * 
+ * The JSON is encoded straight from fastjson's per thread char buffer, which
+ * SerializeWriter takes on creation and hands back on close, so no String and
+ * no new buffer are allocated per record.
+ * 
+ * @author zjzcn
+ *
+ */
+public class ResultEventSerializer implements Serializer<ResultEvent> {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	@Override
+	public void configure(Map<String, ?> configs, boolean isKey) {
+		
+	}
+
+	@Override
+	public byte[] serialize(String topic, ResultEvent event) {
+		if (event == null) {
+			return null;
+		}
+		SerializeWriter out = new SerializeWriter();
+		try {
+			new JSONSerializer(out).write(event);
+			return out.toBytes(UTF8);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		
+	}
+
+}
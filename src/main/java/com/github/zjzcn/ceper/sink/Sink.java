@@ -20,6 +20,11 @@ public interface Sink {
 	
 	void process(ResultEvent event);
 	
+	/**
+	 * Delivers a batch of results, the list is reused by the caller after return.
+	 */
+	void process(List<ResultEvent> events);
+	
 	void setProcessors(List<Processor> processors);
 	
 	List<Processor> getProcessors();
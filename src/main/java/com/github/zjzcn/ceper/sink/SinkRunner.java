@@ -1,23 +1,55 @@
 package com.github.zjzcn.ceper.sink;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.zjzcn.ceper.event.ResultEvent;
 import com.github.zjzcn.ceper.processor.Processor;
+import com.github.zjzcn.ceper.processor.ResultSignal;
+import com.github.zjzcn.ceper.processor.ResultSubscription;
+import com.github.zjzcn.ceper.utils.Assert;
+import com.typesafe.config.Config;
 
+/**
+ * Event driven: the sink subscribes to each of its processors, so it receives
+ * every result even if other sinks use the same processors. The runner threads
+ * sleep on a ResultSignal raised by any of those processors, then drain up to
+ * drain_size results per subscription and deliver them with Sink.process(List). With sink_threads > 1 batches are delivered in
+ * parallel, so their order across threads is not kept.
+ * 
+ * @author zjzcn
+ *
+ */
 public class SinkRunner {
 
 	private static final Logger logger = LoggerFactory.getLogger(SinkRunner.class);
 	
 	private static final long MAX_BACKOFF_SLEEP = 5000;
+	
+	private static final long MAX_IDLE_WAIT = 100;
+	
+	private static final int DEFAULT_DRAIN_SIZE = 500;
 
 	private Sink sink;
 	
-	private Thread runnerThread;
+	private int threadCount = 1;
+	
+	private int drainSize = DEFAULT_DRAIN_SIZE;
+	
+	private Thread[] runnerThreads;
+	
+	private final ResultSignal signal = new ResultSignal();
+	
+	private final List<ResultSubscription> subscriptions = new ArrayList<ResultSubscription>();
+	
+	// where the next drain round starts, spreads the threads over the processors
+	private final AtomicInteger nextProcessor = new AtomicInteger();
 
 	private AtomicBoolean shouldStop = new AtomicBoolean(false);
 	
@@ -25,51 +57,97 @@ public class SinkRunner {
 		this.sink = sink;
 	}
 	
+	public void config(Config config) {
+		if (config.hasPath("sink_threads")) {
+			threadCount = config.getInt("sink_threads");
+			Assert.isTrue(threadCount > 0, "Sink config item[sink_threads] must be positive.");
+		}
+		if (config.hasPath("drain_size")) {
+			drainSize = config.getInt("drain_size");
+			Assert.isTrue(drainSize > 0, "Sink config item[drain_size] must be positive.");
+		}
+	}
+	
 	public void start() {
 		sink.start();
 		
-		runnerThread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				logger.info("Polling sink runner starting");
-				while (!shouldStop.get()) {
-					List<Processor> processors =  sink.getProcessors();
-					for(Processor processor : processors) {
+		for (Processor processor : sink.getProcessors()) {
+			subscriptions.add(processor.subscribe(sink.getName(), signal));
+		}
+		
+		runnerThreads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			runnerThreads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("Sink runner starting, sink={}", sink.getName());
+					List<ResultEvent> batch = new ArrayList<ResultEvent>(drainSize);
+					while (!shouldStop.get()) {
 						try {
-							ResultEvent event = processor.getResult();
-							if(event != null) {
-								sink.process(event);
+							long version = signal.version();
+							if (drainOnce(batch) == 0) {
+								signal.await(version, MAX_IDLE_WAIT, TimeUnit.MILLISECONDS);
 							}
+						} catch (InterruptedException e) {
+							break;
 						} catch (Exception e) {
 							logger.error("Unable to deliver event. Exception follows.", e);
 							try {
 								Thread.sleep(MAX_BACKOFF_SLEEP);
 							} catch (InterruptedException ex) {
-								Thread.currentThread().interrupt();
+								break;
 							}
 						}
 					}
+					logger.info("Sink runner exiting, sink={}", sink.getName());
+				}
+			});
+			runnerThreads[i].setName("SinkRunner-" + sink.getName() + "-" + i);
+			runnerThreads[i].start();
+		}
+	}
+	
+	private int drainOnce(List<ResultEvent> batch) {
+		int size = subscriptions.size();
+		int start = (nextProcessor.getAndIncrement() & Integer.MAX_VALUE) % size;
+		int total = 0;
+		for (int i = 0; i < size; i++) {
+			ResultSubscription subscription = subscriptions.get((start + i) % size);
+			batch.clear();
+			try {
+				if (subscription.drainTo(batch, drainSize) > 0) {
+					total += batch.size();
+					sink.process(batch);
 				}
-				logger.info("Polling runner exiting. ");
+			} finally {
+				batch.clear();
 			}
-		});
-		runnerThread.setName("SinkRunner");
-		runnerThread.start();
+		}
+		return total;
 	}
 
 	public void stop() {
-		if (runnerThread != null) {
+		if (runnerThreads != null) {
 			shouldStop.set(true);
-			runnerThread.interrupt();
-			while (runnerThread.isAlive()) {
-				try {
-					logger.info("Waiting for runner thread to exit");
-					runnerThread.join(500);
-				} catch (InterruptedException e) {
-					logger.info("Interrupted while waiting for runner thread to exit. Exception follows.", e);
+			for (Thread runnerThread : runnerThreads) {
+				runnerThread.interrupt();
+			}
+			for (Thread runnerThread : runnerThreads) {
+				while (runnerThread.isAlive()) {
+					try {
+						logger.info("Waiting for runner thread to exit");
+						runnerThread.join(500);
+					} catch (InterruptedException e) {
+						logger.info("Interrupted while waiting for runner thread to exit. Exception follows.", e);
+					}
 				}
 			}
 		}
+		List<Processor> processors = sink.getProcessors();
+		for (int i = 0; i < subscriptions.size(); i++) {
+			processors.get(i).unsubscribe(subscriptions.get(i));
+		}
+		subscriptions.clear();
 	}
 
 }
@@ -1,27 +1,95 @@
 package com.github.zjzcn.ceper.source;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.zjzcn.ceper.common.Constants;
+import com.github.zjzcn.ceper.event.Credit;
+import com.github.zjzcn.ceper.processor.SnapshotManager;
+import com.github.zjzcn.ceper.utils.Assert;
 import com.typesafe.config.Config;
 
+/**
+ * With worker_threads > 1 the records of each poll are processed per partition in
+ * parallel. A partition always goes to the same single-threaded worker, so records
+ * of one partition keep their order. With one worker thread the partitions are
+ * processed on the polling thread, in the same way. The next poll waits until all
+ * partitions are done. A failed partition is redelivered from its first record of
+ * the poll up to max_retries times, then processed record by record, skipping (and
+ * logging) the failing ones.
+ * 
+ * The events of a poll go on to the processors and remote nodes after the poll, its
+ * offsets are committed per partition once all of its events came back (see
+ * {@link Credit}), the consumer never commits on its own (auto_commit_enabled is
+ * ignored). When a remote batch failed the partition is redelivered from that poll
+ * on, up to max_retries times, later events may then be processed twice.
+ * 
+ * Committed offsets are also reported to the {@link SnapshotManager}. After a restore
+ * on a single node cluster a newly assigned partition seeks back to the offset of the
+ * snapshot, so the events after the snapshot are replayed into the restored processor
+ * state.
+ * 
+ * Every partition has max_in_flight credits (see {@link Credit}), a partition whose
+ * events are not processed yet, here or on a remote node, is paused until half of
+ * its credits came back. An overload shows up as consumer lag. 0 disables it. A poll
+ * returns at most max_in_flight records (max_poll_records if lower), so a partition
+ * goes over its credits by less than one poll.
+ * 
+ * @author zjzcn
+ *
+ */
 public class KafkaSource extends AbstractPollingSource {
 
 	private static final Logger logger = LoggerFactory.getLogger(KafkaSource.class);
 
-	private Consumer<String, String> consumer;
+	private Consumer<String, Object> consumer;
 
 	private Properties props = new Properties();
 	private String topic;
-	private boolean autoCommitEnabled = true;
+	private int workerThreads = 1;
+	private int maxInFlight = Constants.DEFAULT_SOURCE_MAX_IN_FLIGHT;
+	private int maxRetries = Constants.DEFAULT_SOURCE_MAX_RETRIES;
+	
+	// failed partition -> {first offset of the failed poll, attempts}, polling thread only
+	private final Map<TopicPartition, long[]> retries = new HashMap<TopicPartition, long[]>();
+	
+	// partition -> processed polls whose events are not all back yet, in offset order, polling thread only
+	private final Map<TopicPartition, LinkedList<Poll>> uncommitted = new HashMap<TopicPartition, LinkedList<Poll>>();
+	
+	// credits are released by any thread, paused is only used by the polling thread
+	private final ConcurrentMap<TopicPartition, Credit> credits = new ConcurrentHashMap<TopicPartition, Credit>();
+	private final Set<TopicPartition> paused = new HashSet<TopicPartition>();
+	
+	private ExecutorService[] workers;
 
 	@Override
 	public void config(Config config) {
@@ -47,31 +115,98 @@ public class KafkaSource extends AbstractPollingSource {
 			props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, config.getString("fetch_min_bytes"));
 		}
 		
-		if(config.hasPath("auto_commit_enabled")) {
-			autoCommitEnabled = config.getBoolean("auto_commit_enabled");
-			props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, config.getString("auto_commit_enabled"));
+		// the consumer would commit whatever it polled, processed or not
+		if(config.hasPath("auto_commit_enabled") && config.getBoolean("auto_commit_enabled")) {
+			logger.warn("Kafka source {} ignores auto_commit_enabled, offsets are committed once their records were processed.", getName());
 		}
+		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
 		
-		if(config.hasPath("auto_commit_interval_ms")) {
-			props.put(ConsumerConfig.AUTO_COMMIT_INTERVAL_MS_CONFIG, config.getString("auto_commit_interval_ms"));
-		}
 		if(config.hasPath("session_timeout_ms")) {
 			props.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, config.getString("session_timeout_ms"));
 		}
 		
+		if(config.hasPath("worker_threads")) {
+			workerThreads = config.getInt("worker_threads");
+			Assert.isTrue(workerThreads > 0, "Kafka source config item[worker_threads] must be positive.");
+		}
+		
+		if(config.hasPath("max_retries")) {
+			maxRetries = config.getInt("max_retries");
+		}
+		
+		if(config.hasPath("max_in_flight")) {
+			maxInFlight = config.getInt("max_in_flight");
+		}
+		
+		// credits are checked before a poll, one poll may go over them by at most max_poll_records
+		int maxPollRecords = config.hasPath("max_poll_records") ? config.getInt("max_poll_records") : Integer.MAX_VALUE;
+		if (maxInFlight > 0) {
+			maxPollRecords = Math.min(maxPollRecords, maxInFlight);
+		}
+		if (maxPollRecords != Integer.MAX_VALUE) {
+			props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(maxPollRecords));
+		}
+		
 		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
-		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
+		// bytes: hand the raw value to the converter, e.g. json_bytes
+		String valueType = config.hasPath("value_type") ? config.getString("value_type") : "string";
+		switch (valueType) {
+		case "string":
+			props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
+			break;
+		case "bytes":
+			props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+			break;
+		default:
+			throw new IllegalArgumentException("Kafka source config item[value_type] not supported: " + valueType);
+		}
 	}
 
 	@Override
 	public void start() {
 		logger.info("Starting kafka source {}", this.getName());
 		try {
-			consumer = new KafkaConsumer<String, String>(props);
-			consumer.subscribe(Arrays.asList(topic));
+			consumer = new KafkaConsumer<String, Object>(props);
+			consumer.subscribe(Arrays.asList(topic), new ConsumerRebalanceListener() {
+				@Override
+				public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+					commitCompleted();
+					for (TopicPartition partition : partitions) {
+						uncommitted.remove(partition);
+						retries.remove(partition);
+						credits.remove(partition);
+						paused.remove(partition);
+					}
+				}
+
+				@Override
+				public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+					for (TopicPartition partition : partitions) {
+						Long offset = SnapshotManager.takeRestoredOffset(offsetKey(partition));
+						if (offset != null) {
+							logger.info("Seek to snapshot offset, partition={}, offset={}.", partition, offset);
+							consumer.seek(partition, offset);
+						}
+					}
+				}
+			});
 		} catch (Exception e) {
 			throw new RuntimeException("Unable to create kafka consumer.", e);
 		}
+		if (workerThreads > 1) {
+			workers = new ExecutorService[workerThreads];
+			for (int i = 0; i < workerThreads; i++) {
+				final String threadName = "KafkaSourceWorker-" + getName() + "-" + i;
+				workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, threadName);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
 		
 		logger.info("Kafka source started.");
 	}
@@ -79,7 +214,25 @@ public class KafkaSource extends AbstractPollingSource {
 	@Override
 	public void stop() {
 		logger.info("Stoping kafka source {}", this.getName());
+		if (workers != null) {
+			for (ExecutorService worker : workers) {
+				worker.shutdown();
+			}
+			for (ExecutorService worker : workers) {
+				try {
+					worker.awaitTermination(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
 		if(consumer != null) {
+			// the polls whose events came back until now, the others are redelivered after a restart
+			try {
+				commitCompleted();
+			} catch (Exception e) {
+				logger.error("Error while committing kafka source {} on stop.", getName(), e);
+			}
 			consumer.close();
 		}
 		logger.info("Kafka source stoped.");
@@ -87,16 +240,224 @@ public class KafkaSource extends AbstractPollingSource {
 
 	@Override
 	public void process() {
-		ConsumerRecords<String, String> records = consumer.poll(1000);
-		for (ConsumerRecord<String, String> record : records) {
-			logger.debug("Message received from kafka: {}.", record);
-			String value = record.value();
-			getFilterChain().process(value);
+		commitCompleted();
+		if (maxInFlight > 0) {
+			applyCredits();
+		}
+		// short polls while paused, to resume soon after the credits came back
+		ConsumerRecords<String, Object> records = consumer.poll(paused.isEmpty() ? 1000 : 100);
+		if (records.isEmpty()) {
+			return;
+		}
+		List<TopicPartition> partitions = new ArrayList<TopicPartition>(records.partitions());
+		List<Future<?>> futures = new ArrayList<Future<?>>(partitions.size());
+		List<Credit> pollCredits = new ArrayList<Credit>(partitions.size());
+		for (TopicPartition partition : partitions) {
+			final TopicPartition workerPartition = partition;
+			final List<ConsumerRecord<String, Object>> partitionRecords = records.records(partition);
+			long[] retry = retries.get(partition);
+			final boolean skipFailed = retry != null && retry[0] == partitionRecords.get(0).offset() && retry[1] >= maxRetries;
+			final Credit pollCredit = pollCredit(partition);
+			pollCredits.add(pollCredit);
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					if (skipFailed) {
+						processEach(workerPartition, partitionRecords, pollCredit);
+					} else {
+						processRecords(workerPartition, partitionRecords, pollCredit);
+					}
+				}
+			};
+			if (workers == null) {
+				// single thread: run here, failures are handled like a worker's
+				FutureTask<Void> future = new FutureTask<Void>(task, null);
+				future.run();
+				futures.add(future);
+			} else {
+				ExecutorService worker = workers[(partition.hashCode() & Integer.MAX_VALUE) % workers.length];
+				futures.add(worker.submit(task));
+			}
+		}
+
+		Throwable failure = null;
+		for (int i = 0; i < partitions.size(); i++) {
+			TopicPartition partition = partitions.get(i);
+			List<ConsumerRecord<String, Object>> partitionRecords = records.records(partition);
+			try {
+				futures.get(i).get();
+				// committed once its events came back from the processors and remote nodes
+				long lastOffset = partitionRecords.get(partitionRecords.size() - 1).offset();
+				LinkedList<Poll> polls = uncommitted.get(partition);
+				if (polls == null) {
+					polls = new LinkedList<Poll>();
+					uncommitted.put(partition, polls);
+				}
+				polls.add(new Poll(partitionRecords.get(0).offset(), lastOffset + 1, pollCredits.get(i)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = e;
+			} catch (ExecutionException e) {
+				// redeliver the failed partition from its first record of this poll
+				long firstOffset = partitionRecords.get(0).offset();
+				long[] retry = retries.get(partition);
+				if (retry == null || retry[0] != firstOffset) {
+					retry = new long[] { firstOffset, 0 };
+					retries.put(partition, retry);
+				}
+				retry[1]++;
+				logger.warn("Kafka source {} failed on partition {} from offset {}, attempt {} of {}.",
+						getName(), partition, firstOffset, retry[1], maxRetries);
+				consumer.seek(partition, firstOffset);
+				failure = e.getCause();
+			}
+		}
+
+		commitCompleted();
+		if (failure != null) {
+			throw new RuntimeException("Kafka source failed to process records.", failure);
 		}
+	}
+	
+	/**
+	 * Commits the polls of each partition whose events all came back, in order. From
+	 * a poll with an event that failed, on a remote node or without any node to go
+	 * to, the partition is redelivered up to max_retries times, then it is committed
+	 * and the failure logged.
+	 */
+	private void commitCompleted() {
+		Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+		for (Map.Entry<TopicPartition, LinkedList<Poll>> entry : uncommitted.entrySet()) {
+			TopicPartition partition = entry.getKey();
+			LinkedList<Poll> polls = entry.getValue();
+			while (!polls.isEmpty() && polls.getFirst().credit.getInFlight() == 0) {
+				Poll poll = polls.removeFirst();
+				if (poll.credit.isFailed() && redeliver(partition, poll)) {
+					// the later polls come again too
+					polls.clear();
+					break;
+				}
+				offsets.put(partition, new OffsetAndMetadata(poll.nextOffset));
+			}
+		}
+		if (offsets.isEmpty()) {
+			return;
+		}
+		consumer.commitSync(offsets);
+		for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+			TopicPartition partition = entry.getKey();
+			long offset = entry.getValue().offset();
+			SnapshotManager.updateOffset(offsetKey(partition), offset);
+			long[] retry = retries.get(partition);
+			if (retry != null && retry[0] < offset) {
+				retries.remove(partition);
+			}
+		}
+	}
+
+	// true if the partition is sought back to the poll, false if it is given up
+	private boolean redeliver(TopicPartition partition, Poll poll) {
+		long[] retry = retries.get(partition);
+		if (retry == null || retry[0] != poll.firstOffset) {
+			retry = new long[] { poll.firstOffset, 0 };
+			retries.put(partition, retry);
+		}
+		if (retry[1] >= maxRetries) {
+			logger.error("Kafka source {} lost events of partition {} from offset {} to {}, not processed after {} retries.",
+					getName(), partition, poll.firstOffset, poll.nextOffset - 1, maxRetries);
+			return false;
+		}
+		retry[1]++;
+		logger.warn("Kafka source {} redelivers partition {} from offset {}, events were not processed, attempt {} of {}.",
+				getName(), partition, poll.firstOffset, retry[1], maxRetries);
+		consumer.seek(partition, poll.firstOffset);
+		return true;
+	}
+	
+	private String offsetKey(TopicPartition partition) {
+		return getName() + "/" + partition;
+	}
+
+	private void processRecords(TopicPartition partition, List<ConsumerRecord<String, Object>> partitionRecords, Credit pollCredit) {
+		List<Object> values = new ArrayList<Object>(partitionRecords.size());
+		for (ConsumerRecord<String, Object> record : partitionRecords) {
+			values.add(record.value());
+		}
+		logger.debug("Messages received from kafka: {}.", values.size());
+		getFilterChain().process(values, pollCredit);
+	}
+
+	// the last attempt on a failing poll: one record at a time, the failing ones are skipped
+	private void processEach(TopicPartition partition, List<ConsumerRecord<String, Object>> partitionRecords, Credit pollCredit) {
+		for (ConsumerRecord<String, Object> record : partitionRecords) {
+			try {
+				processRecords(partition, Collections.singletonList(record), pollCredit);
+			} catch (Exception e) {
+				logger.error("Kafka source {} skipped a record after {} retries, partition={}, offset={}.",
+						getName(), maxRetries, partition, record.offset(), e);
+			}
+		}
+	}
+
+	// the credit of one poll, counted by the partition's credit when there is one
+	private Credit pollCredit(TopicPartition partition) {
+		if (maxInFlight <= 0) {
+			return new Credit(0);
+		}
+		return credit(partition).newChild();
+	}
+
+	private Credit credit(TopicPartition partition) {
+		Credit credit = credits.get(partition);
+		if (credit == null) {
+			Credit newCredit = new Credit(maxInFlight);
+			credit = credits.putIfAbsent(partition, newCredit);
+			if (credit == null) {
+				credit = newCredit;
+			}
+		}
+		return credit;
+	}
+
+	// pauses the partitions out of credits, resumes the recovered ones
+	private void applyCredits() {
+		List<TopicPartition> toPause = new ArrayList<TopicPartition>();
+		List<TopicPartition> toResume = new ArrayList<TopicPartition>();
+		for (Map.Entry<TopicPartition, Credit> entry : credits.entrySet()) {
+			TopicPartition partition = entry.getKey();
+			Credit credit = entry.getValue();
+			if (paused.contains(partition)) {
+				if (credit.isRecovered()) {
+					toResume.add(partition);
+				}
+			} else if (credit.isExhausted()) {
+				toPause.add(partition);
+			}
+		}
+		if (!toPause.isEmpty()) {
+			consumer.pause(toPause);
+			paused.addAll(toPause);
+			logger.info("Kafka source {} paused partitions {}, out of credits.", getName(), toPause);
+		}
+		if (!toResume.isEmpty()) {
+			consumer.resume(toResume);
+			paused.removeAll(toResume);
+			logger.info("Kafka source {} resumed partitions {}.", getName(), toResume);
+		}
+	}
+
+	private static final class Poll {
+
+		final long firstOffset;
+
+		final long nextOffset;
+
+		final Credit credit;
 
-		if (!autoCommitEnabled) {
-			// commit the read transactions to Kafka to avoid duplicates
-			consumer.commitSync();
+		Poll(long firstOffset, long nextOffset, Credit credit) {
+			this.firstOffset = firstOffset;
+			this.nextOffset = nextOffset;
+			this.credit = credit;
 		}
 	}
 
@@ -16,6 +16,8 @@ public interface Client {
 	
 	Response send(Request req);
 	
+	ResponseFuture sendAsync(Request req);
+	
 	boolean isConnected();
 	
 }
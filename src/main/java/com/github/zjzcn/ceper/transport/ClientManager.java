@@ -0,0 +1,138 @@
+package com.github.zjzcn.ceper.transport;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.transport.netty.NettyClient;
+import com.typesafe.config.Config;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Hands out clients to remote nodes. client_type selects the implementation:
+ * <pre>
+ * 	pool:      a commons-pool of single connection NettyClients per node, each with its own event loop
+ * 	multiplex: one NettyClient per node with client_channels connections, all nodes share one event loop group
+ * </pre>
+ * 
+ * @author zjzcn
+ *
+ */
+public class ClientManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(ClientManager.class);
+
+	public static final String CLIENT_TYPE_POOL = "pool";
+	public static final String CLIENT_TYPE_MULTIPLEX = "multiplex";
+	
+	private static final int DEFAULT_CLIENT_CHANNELS = 2;
+	
+	private static String clientType = CLIENT_TYPE_MULTIPLEX;
+	
+	private static int clientChannels = DEFAULT_CLIENT_CHANNELS;
+	
+	private static int clientMaxRequest = Protocol.CLIENT_MAX_REQUEST;
+	
+	// 0: netty default, 2 * cores
+	private static int clientIoThreads = 0;
+	
+	private static EventLoopGroup eventLoopGroup;
+	
+	private static ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	
+	public static void config(Config config) {
+		if (config.hasPath("client_type")) {
+			clientType = config.getString("client_type");
+		}
+		if (config.hasPath("client_channels")) {
+			clientChannels = config.getInt("client_channels");
+		}
+		if (config.hasPath("client_max_request")) {
+			clientMaxRequest = config.getInt("client_max_request");
+		}
+		if (config.hasPath("client_io_threads")) {
+			clientIoThreads = config.getInt("client_io_threads");
+		}
+		if (!CLIENT_TYPE_POOL.equals(clientType) && !CLIENT_TYPE_MULTIPLEX.equals(clientType)) {
+			throw new IllegalArgumentException("Not supported client_type: " + clientType);
+		}
+		logger.info("ClientManager configured, clientType={}, clientChannels={}, clientMaxRequest={}.", 
+				clientType, clientChannels, clientMaxRequest);
+	}
+	
+	/**
+	 * Every client returned must be given back by {@link #releaseClient(String, int, Client)}.
+	 */
+	public static Client getClient(String serverHost, int serverPort) {
+		if (CLIENT_TYPE_POOL.equals(clientType)) {
+			return ClientPool.getPool(serverHost, serverPort).getResource();
+		}
+		
+		String key = clientKey(serverHost, serverPort);
+		Client client = clients.get(key);
+		if (client == null) {
+			client = createClient(key, serverHost, serverPort);
+		}
+		if (!client.isConnected()) {
+			synchronized (client) {
+				if (!client.isConnected()) {
+					client.reconnect();
+				}
+			}
+		}
+		return client;
+	}
+	
+	public static void releaseClient(String serverHost, int serverPort, Client client) {
+		if (CLIENT_TYPE_POOL.equals(clientType)) {
+			ClientPool.getPool(serverHost, serverPort).returnResource(client);
+		}
+		// multiplex clients stay with the manager
+	}
+	
+	public static void removeClient(String serverHost, int serverPort) {
+		if (CLIENT_TYPE_POOL.equals(clientType)) {
+			ClientPool.deleteClientPool(serverHost, serverPort);
+			return;
+		}
+		Client client = clients.remove(clientKey(serverHost, serverPort));
+		if (client != null) {
+			client.close();
+		}
+	}
+	
+	public static synchronized void stop() {
+		for (String key : clients.keySet()) {
+			Client client = clients.remove(key);
+			if (client != null) {
+				client.close();
+			}
+		}
+		if (eventLoopGroup != null) {
+			eventLoopGroup.shutdownGracefully();
+			eventLoopGroup = null;
+		}
+	}
+	
+	private static synchronized Client createClient(String key, String serverHost, int serverPort) {
+		Client client = clients.get(key);
+		if (client != null) {
+			return client;
+		}
+		if (eventLoopGroup == null) {
+			eventLoopGroup = clientIoThreads > 0 ? new NioEventLoopGroup(clientIoThreads) : new NioEventLoopGroup();
+		}
+		client = new NettyClient(serverHost, serverPort, clientMaxRequest, clientChannels, eventLoopGroup);
+		client.connect();
+		clients.put(key, client);
+		return client;
+	}
+	
+	private static String clientKey(String serverHost, int serverPort) {
+		return serverHost + ":" + serverPort;
+	}
+}
@@ -5,6 +5,10 @@ package com.github.zjzcn.ceper.transport;
  * +-------+------+-----+------------+-------------+----------------+
  * | 2byte |1byte |1byte| 8byte      | 4byte       |body length byte|
  * 
+ * ext: bit 0-3 serializer id, bit 4-6 compressor id, bit 7 reserved
+ * 
+ * a compressed body starts with its uncompressed length (4byte)
+ * 
  * @author zjz
  *
  */
@@ -12,6 +16,11 @@ public class Protocol {
 	
     public static final int MESSAGE_MAGIC = 0xCECE;
     public static final int MESSAGE_HEADER_LENGTH = 16;
+    public static final int EXT_SERIALIZER_MASK = 0x0F;
+    public static final int EXT_COMPRESSOR_MASK = 0x70;
+    public static final int EXT_COMPRESSOR_SHIFT = 4;
+    // body length limit, compressed or not, a state hand-off may be large
+    public static final int MAX_BODY_LENGTH = 256 * 1024 * 1024;
     
     // heartbeat constants start
     public static final int CLIENT_HEARTBEAT_INTERVAL = 2;
@@ -20,13 +29,16 @@ public class Protocol {
     
 	// netty config value
 	public static final int CLIENT_MAX_REQUEST = 2000;
-	public static final int REQUEST_TIMEOUT_TIMER_PERIOD = 100;
+	public static final int REQUEST_TIMEOUT_TICK_MS = 10;
+	public static final int REQUEST_TIMEOUT_TICKS_PER_WHEEL = 1024;
     
 	public static class MessageType {
 		public static final byte HEARTBEAT_REQ = 1;
 		public static final byte HEARTBEAT_RESP = 2;
 		public static final byte MESSAGE_REQ = 3;
 		public static final byte MESSAGE_RESP = 4;
+		public static final byte STATE_REQ = 5;
+		public static final byte STATE_RESP = 6;
 	}
 	
 	public static Request buildHeartbeatRequest() {
@@ -57,4 +69,19 @@ public class Protocol {
         resp.setMessageType(Protocol.MessageType.MESSAGE_RESP);
         return resp;
 	}
+	
+	public static Request buildStateRequest(Object data) {
+		Request req = new Request();
+        req.setRequestId(RequestId.newId());
+        req.setMessageType(Protocol.MessageType.STATE_REQ);
+        req.setData(data);
+        return req;
+	}
+	
+	public static Response buildStateResponse(long requestId) {
+		Response resp = new Response();
+        resp.setRequestId(requestId);
+        resp.setMessageType(Protocol.MessageType.STATE_RESP);
+        return resp;
+	}
 }
@@ -0,0 +1,75 @@
+package com.github.zjzcn.ceper.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.zjzcn.ceper.monitor.Metric;
+import com.github.zjzcn.ceper.monitor.MetricCollector;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+/**
+ * Request timeouts of all clients on one hashed wheel, insert and cancel are O(1).
+ * 
+ * @author zjzcn
+ *
+ */
+public class RequestTimeoutTimer {
+
+	private static final HashedWheelTimer timer = new HashedWheelTimer(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RequestTimeoutTimer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}, Protocol.REQUEST_TIMEOUT_TICK_MS, TimeUnit.MILLISECONDS, Protocol.REQUEST_TIMEOUT_TICKS_PER_WHEEL);
+	
+	private static final AtomicLong pendingCount = new AtomicLong(0);
+	
+	private static final AtomicLong expiredCount = new AtomicLong(0);
+	
+	static {
+		new MetricCollector() {
+			@Override
+			public List<Metric> collect() {
+				List<Metric> metrics = new ArrayList<Metric>(3);
+				metrics.add(new Metric("transport.timeout_wheel.tick_ms", String.valueOf(Protocol.REQUEST_TIMEOUT_TICK_MS)));
+				metrics.add(new Metric("transport.timeout_wheel.pending", String.valueOf(pendingCount.get())));
+				metrics.add(new Metric("transport.timeout_wheel.expired", String.valueOf(expiredCount.get())));
+				return metrics;
+			}
+		};
+	}
+	
+	public static Timeout newTimeout(final TimerTask task, long delayMs) {
+		pendingCount.incrementAndGet();
+		return timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				pendingCount.decrementAndGet();
+				expiredCount.incrementAndGet();
+				task.run(timeout);
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+	
+	public static void cancel(Timeout timeout) {
+		if (timeout != null && timeout.cancel()) {
+			pendingCount.decrementAndGet();
+		}
+	}
+	
+	public static long getPendingCount() {
+		return pendingCount.get();
+	}
+	
+	public static long getExpiredCount() {
+		return expiredCount.get();
+	}
+}
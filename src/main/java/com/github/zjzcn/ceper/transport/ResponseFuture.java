@@ -6,6 +6,8 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.util.Timeout;
+
 public class ResponseFuture extends Response implements Future {
 	
 	private static final long serialVersionUID = 1L;
@@ -23,6 +25,8 @@ public class ResponseFuture extends Response implements Future {
 
 	private Request request;
 	private List<FutureListener> listeners;
+	
+	private volatile Timeout timeoutHandle;
 
 	public ResponseFuture(Request requestObj, int timeout) {
 		this.request = requestObj;
@@ -174,6 +178,14 @@ public class ResponseFuture extends Response implements Future {
 	public FutureState getState() {
 		return state;
 	}
+	
+	public void setTimeoutHandle(Timeout timeoutHandle) {
+		this.timeoutHandle = timeoutHandle;
+	}
+	
+	public void cancelTimeout() {
+		RequestTimeoutTimer.cancel(timeoutHandle);
+	}
 
 	private void notifyListeners() {
 		if (listeners != null) {
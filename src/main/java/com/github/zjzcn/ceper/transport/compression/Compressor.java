@@ -0,0 +1,30 @@
+package com.github.zjzcn.ceper.transport.compression;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Frame body compressor, selected per frame by the codec id in the ext byte of
+ * the message header.
+ * 
+ * @author zjzcn
+ *
+ */
+public interface Compressor {
+
+	/**
+	 * Id written to bits 4 - 6 of the ext byte, 1 - 7. 0 means not compressed.
+	 */
+	public byte getCompressorId();
+	
+	/**
+	 * Compresses the readable bytes of in and appends them to out.
+	 */
+	public void compress(ByteBuf in, ByteBuf out);
+	
+	/**
+	 * Decompresses the readable bytes of in into out, which must have room for
+	 * uncompressedLength bytes. The input comes from the network, malformed input
+	 * must fail with an exception, never write past uncompressedLength.
+	 */
+	public void decompress(ByteBuf in, ByteBuf out, int uncompressedLength);
+}
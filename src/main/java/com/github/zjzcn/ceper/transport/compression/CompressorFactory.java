@@ -0,0 +1,89 @@
+package com.github.zjzcn.ceper.transport.compression;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.common.Constants;
+import com.github.zjzcn.ceper.transport.Protocol;
+import com.typesafe.config.Config;
+
+/**
+ * The configured compressor is used for outgoing frames whose body reaches the
+ * threshold; incoming frames are decompressed by the codec id in their header,
+ * whatever the local setting is.
+ * 
+ * @author zjzcn
+ *
+ */
+public class CompressorFactory {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompressorFactory.class);
+	
+	public static final byte NONE_COMPRESSOR_ID = 0;
+	public static final byte SNAPPY_COMPRESSOR_ID = 1;
+	public static final byte LZ4_COMPRESSOR_ID = 2;
+	
+	private static volatile Compressor snappy;
+	private static volatile Compressor lz4;
+	
+	private static volatile String compressionType = "none";
+	private static volatile int compressionThreshold = Constants.DEFAULT_COMPRESSION_THRESHOLD;
+	
+	public static void config(Config config) {
+		if (config.hasPath("compression")) {
+			compressionType = config.getString("compression");
+		}
+		if (config.hasPath("compression_threshold")) {
+			compressionThreshold = config.getInt("compression_threshold");
+		}
+		// fail fast on an unknown type
+		create();
+		logger.info("Compression configured, type={}, threshold={}", compressionType, compressionThreshold);
+	}
+	
+	/**
+	 * @return the configured compressor, null if compression is off
+	 */
+	public static Compressor create() {
+		switch (compressionType) {
+		case "none":
+			return null;
+		case "snappy":
+			return getCompressor(SNAPPY_COMPRESSOR_ID);
+		case "lz4":
+			return getCompressor(LZ4_COMPRESSOR_ID);
+		default:
+			throw new IllegalArgumentException("Not supported compression type: " + compressionType);
+		}
+	}
+	
+	public static int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	public static Compressor getCompressor(byte compressorId) {
+		switch (compressorId) {
+		case SNAPPY_COMPRESSOR_ID:
+			if (snappy == null) {
+				snappy = new SnappyCompressor();
+			}
+			return snappy;
+		case LZ4_COMPRESSOR_ID:
+			if (lz4 == null) {
+				lz4 = new Lz4Compressor();
+			}
+			return lz4;
+		default:
+			throw new IllegalArgumentException("Not supported compressor id: " + compressorId);
+		}
+	}
+	
+	/**
+	 * Rejects an uncompressed length read from the network that no frame can have.
+	 */
+	static void checkLength(int uncompressedLength) {
+		if (uncompressedLength < 0 || uncompressedLength > Protocol.MAX_BODY_LENGTH) {
+			throw new IllegalArgumentException("Uncompressed length out of range: " + uncompressedLength);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.github.zjzcn.ceper.transport.compression;
+
+import io.netty.buffer.ByteBuf;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Works on the backing arrays of heap buffers, lz4 1.3.0 ignores the array
+ * offset of sliced ByteBuffers. Direct buffers are copied.
+ * 
+ * @author zjzcn
+ *
+ */
+public class Lz4Compressor implements Compressor {
+
+	private final LZ4Compressor compressor;
+	// the fast decompressor trusts its input, which can crash the jvm with the jni instance
+	private final LZ4SafeDecompressor decompressor;
+	
+	public Lz4Compressor() {
+		LZ4Factory factory = LZ4Factory.fastestInstance();
+		compressor = factory.fastCompressor();
+		decompressor = factory.safeDecompressor();
+	}
+	
+	@Override
+	public byte getCompressorId() {
+		return CompressorFactory.LZ4_COMPRESSOR_ID;
+	}
+
+	@Override
+	public void compress(ByteBuf in, ByteBuf out) {
+		int length = in.readableBytes();
+		int maxLength = compressor.maxCompressedLength(length);
+		out.ensureWritable(maxLength);
+		if (!out.hasArray()) {
+			byte[] dest = new byte[maxLength];
+			int compressedLength = compressor.compress(array(in), arrayOffset(in), length, dest, 0, maxLength);
+			out.writeBytes(dest, 0, compressedLength);
+		} else {
+			int destOffset = out.arrayOffset() + out.writerIndex();
+			int compressedLength = compressor.compress(array(in), arrayOffset(in), length, out.array(), destOffset, maxLength);
+			out.writerIndex(out.writerIndex() + compressedLength);
+		}
+		in.skipBytes(length);
+	}
+
+	@Override
+	public void decompress(ByteBuf in, ByteBuf out, int uncompressedLength) {
+		CompressorFactory.checkLength(uncompressedLength);
+		out.ensureWritable(uncompressedLength);
+		int length = in.readableBytes();
+		int written;
+		if (!out.hasArray()) {
+			byte[] dest = new byte[uncompressedLength];
+			written = decompressor.decompress(array(in), arrayOffset(in), length, dest, 0, uncompressedLength);
+			out.writeBytes(dest, 0, written);
+		} else {
+			int destOffset = out.arrayOffset() + out.writerIndex();
+			written = decompressor.decompress(array(in), arrayOffset(in), length, out.array(), destOffset, uncompressedLength);
+			out.writerIndex(out.writerIndex() + written);
+		}
+		if (written != uncompressedLength) {
+			throw new RuntimeException("Lz4 decompressed length mismatch, expected=" + uncompressedLength + ", actual=" + written);
+		}
+		in.skipBytes(length);
+	}
+	
+	private static byte[] array(ByteBuf buf) {
+		if (buf.hasArray()) {
+			return buf.array();
+		}
+		byte[] bytes = new byte[buf.readableBytes()];
+		buf.getBytes(buf.readerIndex(), bytes);
+		return bytes;
+	}
+	
+	private static int arrayOffset(ByteBuf buf) {
+		return buf.hasArray() ? buf.arrayOffset() + buf.readerIndex() : 0;
+	}
+
+}
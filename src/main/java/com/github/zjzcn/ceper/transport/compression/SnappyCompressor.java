@@ -0,0 +1,58 @@
+package com.github.zjzcn.ceper.transport.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.compression.Snappy;
+
+/**
+ * Raw Snappy only handles blocks up to 32KB, so the body is cut into blocks like
+ * SnappyFrameEncoder does, each written as | compressed length (4byte) | block |.
+ * 
+ * @author zjzcn
+ *
+ */
+public class SnappyCompressor implements Compressor {
+
+	private static final int MAX_BLOCK_SIZE = Short.MAX_VALUE;
+
+	@Override
+	public byte getCompressorId() {
+		return CompressorFactory.SNAPPY_COMPRESSOR_ID;
+	}
+
+	@Override
+	public void compress(ByteBuf in, ByteBuf out) {
+		// Snappy keeps decoding state, it is cheap enough to create one per frame
+		Snappy snappy = new Snappy();
+		while (in.isReadable()) {
+			int blockLength = Math.min(in.readableBytes(), MAX_BLOCK_SIZE);
+			int lengthIndex = out.writerIndex();
+			out.writeInt(0);
+			snappy.encode(in.readSlice(blockLength), out, blockLength);
+			out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+			snappy.reset();
+		}
+	}
+
+	@Override
+	public void decompress(ByteBuf in, ByteBuf out, int uncompressedLength) {
+		CompressorFactory.checkLength(uncompressedLength);
+		Snappy snappy = new Snappy();
+		int start = out.writerIndex();
+		while (in.isReadable()) {
+			int compressedLength = in.readInt();
+			if (compressedLength <= 0 || compressedLength > in.readableBytes()) {
+				throw new RuntimeException("Snappy block length out of range, length=" + compressedLength);
+			}
+			snappy.decode(in.readSlice(compressedLength), out);
+			snappy.reset();
+			if (out.writerIndex() - start > uncompressedLength) {
+				throw new RuntimeException("Snappy decompressed more than expected=" + uncompressedLength);
+			}
+		}
+		if (out.writerIndex() - start != uncompressedLength) {
+			throw new RuntimeException("Snappy decompressed length mismatch, expected=" + uncompressedLength
+					+ ", actual=" + (out.writerIndex() - start));
+		}
+	}
+
+}
@@ -1,13 +1,11 @@
 package com.github.zjzcn.ceper.transport.netty;
 
 import java.net.SocketAddress;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -19,6 +17,7 @@ import com.github.zjzcn.ceper.transport.FutureListener;
 import com.github.zjzcn.ceper.transport.MessageHandler;
 import com.github.zjzcn.ceper.transport.Protocol;
 import com.github.zjzcn.ceper.transport.Request;
+import com.github.zjzcn.ceper.transport.RequestTimeoutTimer;
 import com.github.zjzcn.ceper.transport.Response;
 import com.github.zjzcn.ceper.transport.ResponseFuture;
 import com.github.zjzcn.ceper.utils.JsonUtils;
@@ -26,6 +25,7 @@ import com.github.zjzcn.ceper.utils.JsonUtils;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
@@ -33,25 +33,33 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
 public class NettyClient implements Client {
 	
 	private static Logger logger = LoggerFactory.getLogger(NettyClient.class);
 
-	// 回收过期任务
-	private static ScheduledExecutorService requestTimeoutExecutor = Executors.newScheduledThreadPool(4);
 	// 异步的request，需要注册callback future
-	// 触发remove的操作有： 1) service的返回结果处理。 2) timeout thread cancel
+	// 触发remove的操作有： 1) service的返回结果处理。 2) RequestTimeoutTimer cancel
 	private ConcurrentMap<Long, ResponseFuture> callbackMap = new ConcurrentHashMap<Long, ResponseFuture>();
-	private ScheduledFuture<?> requestTimeoutFuture = null;
+	// in-flight window: a permit is held from registerCallback until removeCallback
+	private final Semaphore inflightWindow;
 	
 	private EventLoopGroup eventLoopGroup;
-	private Channel channel;
+	// false when the event loop group is shared with other clients
+	private boolean ownEventLoopGroup;
+	// requests are spread over the channels and correlated by requestId
+	private Channel[] channels;
+	private AtomicInteger channelIndex = new AtomicInteger(0);
 	private Bootstrap bootstrap;
 	
 	private String serverHost;
 	private int serverPort;
 	private int timeout = 10000;
+	// a dead channel is reconnected at most once per interval, connecting blocks the caller
+	private static final long RECONNECT_INTERVAL_MS = 1000;
+	private volatile long lastReconnectTime;
 	
 	private SocketAddress localAddress;
 	private SocketAddress remoteAddress;
@@ -59,13 +67,43 @@ public class NettyClient implements Client {
 	private AtomicLong errorCount = new AtomicLong(0);
 	private AtomicLong sendCount = new AtomicLong(0);
 	
+	private final FutureListener errorCountListener = new FutureListener() {
+		@Override
+		public void onComplete(Future future) throws Exception {
+			if (!future.isSuccess()) {
+				// 失败的调用 
+				errorCount.incrementAndGet();
+			}
+		}
+	};
+	
 	public NettyClient(String serverHost, int serverPort) {
+		this(serverHost, serverPort, Protocol.CLIENT_MAX_REQUEST);
+	}
+	
+	public NettyClient(String serverHost, int serverPort, int maxInflightRequests) {
+		this(serverHost, serverPort, maxInflightRequests, 1, null);
+	}
+	
+	/**
+	 * @param channelCount number of connections opened to the server
+	 * @param eventLoopGroup event loop group shared with other clients, or null to create one for this client
+	 */
+	public NettyClient(String serverHost, int serverPort, int maxInflightRequests, int channelCount, EventLoopGroup eventLoopGroup) {
 		this.serverHost = serverHost;
 		this.serverPort = serverPort;
+		this.inflightWindow = new Semaphore(maxInflightRequests);
+		this.channels = new Channel[channelCount];
 
+		if (eventLoopGroup == null) {
+			this.eventLoopGroup = new NioEventLoopGroup();
+			this.ownEventLoopGroup = true;
+		} else {
+			this.eventLoopGroup = eventLoopGroup;
+			this.ownEventLoopGroup = false;
+		}
 		bootstrap = new Bootstrap();
-		eventLoopGroup = new NioEventLoopGroup();
-		bootstrap.group(eventLoopGroup)
+		bootstrap.group(this.eventLoopGroup)
 		.channel(NioSocketChannel.class)
 		.handler(new ChannelInitializer<SocketChannel>() {
 			@Override
@@ -99,47 +137,42 @@ public class NettyClient implements Client {
 				}));
 			}
 		});
-
-		requestTimeoutFuture = requestTimeoutExecutor.scheduleWithFixedDelay( new Runnable() {
-			@Override
-			public void run() {
-				long currentTime = System.currentTimeMillis();
-				for (Map.Entry<Long, ResponseFuture> entry : callbackMap.entrySet()) {
-					try {
-						ResponseFuture future = entry.getValue();
-
-						if (future.getCreateTime() + future.getTimeout() < currentTime) {
-							// timeout: remove from callback list, and then cancel
-							removeCallback(entry.getKey());
-							future.cancel();
-						} 
-					} catch (Exception e) {
-						logger.error("NettyClient clear timeout NettyResponseFuture Error:  remoteAddress=" + remoteAddress + " requestId=" + entry.getKey(), e);
-					}
-				}
-			}
-		}, Protocol.REQUEST_TIMEOUT_TIMER_PERIOD, Protocol.REQUEST_TIMEOUT_TIMER_PERIOD, TimeUnit.MILLISECONDS);
 	}
 	
 	@Override
 	public synchronized void connect() {
 		logger.info("Http client connecting.");
-		try {
-			channel = bootstrap.connect(serverHost, serverPort).sync().channel();
-			localAddress = channel.localAddress();
-			remoteAddress = channel.remoteAddress();
-			logger.info("Netty client connected. localAttress[{}], remoteAddress[{}].", localAddress, remoteAddress);
-		} catch (Exception e) {
-			logger.error("Netty client error while connecting.", e);
+		for (int i = 0; i < channels.length; i++) {
+			connectChannel(i);
 		}
 	}
 
+	/**
+	 * Reconnects only the channels that are down, the active ones keep their requests.
+	 */
 	@Override
 	public synchronized void reconnect() {
-		logger.info("Http client connecting.");
+		long now = System.currentTimeMillis();
+		if (now - lastReconnectTime < RECONNECT_INTERVAL_MS) {
+			return;
+		}
+		lastReconnectTime = now;
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i] != null && channels[i].isActive()) {
+				continue;
+			}
+			logger.info("Netty client reconnecting channel {} to {}:{}.", i, serverHost, serverPort);
+			if (channels[i] != null) {
+				channels[i].close();
+			}
+			connectChannel(i);
+		}
+	}
+	
+	private void connectChannel(int index) {
 		try {
-			channel.close();
-			channel = bootstrap.connect(serverHost, serverPort).sync().channel();
+			Channel channel = bootstrap.connect(serverHost, serverPort).sync().channel();
+			channels[index] = channel;
 			localAddress = channel.localAddress();
 			remoteAddress = channel.remoteAddress();
 			logger.info("Netty client connected. localAttress[{}], remoteAddress[{}].", localAddress, remoteAddress);
@@ -152,13 +185,22 @@ public class NettyClient implements Client {
 	public synchronized void close() {
 		logger.info("Http client closing.");
 		try {
-			// 取消定期的回收任务
-			requestTimeoutFuture.cancel(true);
 			// 关闭连接池
-			eventLoopGroup.shutdownGracefully();
-			channel.close();
+			if (ownEventLoopGroup) {
+				eventLoopGroup.shutdownGracefully();
+			}
+			for (Channel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
 			// 清空callback
-			callbackMap.clear();
+			for (Long requestId : callbackMap.keySet()) {
+				ResponseFuture future = removeCallback(requestId);
+				if (future != null) {
+					future.cancel();
+				}
+			}
 
 			logger.info("Netty client closed, remoteAddress={}", remoteAddress);
 		} catch (Exception e) {
@@ -170,22 +212,21 @@ public class NettyClient implements Client {
 	public Response send(Request request) {
 		sendCount.incrementAndGet();
 		ResponseFuture newResponseFuture = new ResponseFuture(request, timeout);
-		registerCallback(request.getRequestId(), newResponseFuture);
+		registerCallback(request.getRequestId(), newResponseFuture, true);
 		
-		ChannelFuture writeFuture = this.channel.write(request);
+		Channel channel = selectChannel();
+		if (channel == null) {
+			removeCallback(request.getRequestId());
+			errorCount.incrementAndGet();
+			throw new RuntimeException("Netty client is not connected, remoteAddress=" + remoteAddress 
+					+ ", requestId=" + request.getRequestId());
+		}
+		ChannelFuture writeFuture = channel.writeAndFlush(request);
 
 		boolean result = writeFuture.awaitUninterruptibly(timeout, TimeUnit.MILLISECONDS);
 
 		if(result && writeFuture.isSuccess()) {
-			newResponseFuture.addListener(new FutureListener() {
-				@Override
-				public void onComplete(Future future) throws Exception {
-					if (!future.isSuccess() || (future.isDone() && future.getException()!=null)) {
-						// 失败的调用 
-						errorCount.incrementAndGet();
-					}
-				}
-			});
+			newResponseFuture.addListener(errorCountListener);
 			return newResponseFuture;	
 		} else {
 			ResponseFuture responseFuture = removeCallback(request.getRequestId());
@@ -206,13 +247,61 @@ public class NettyClient implements Client {
 			}
 		}
 	}
+	
+	/**
+	 * Write the request without waiting for the write to complete. The returned future
+	 * is completed on the netty event loop when the response arrives or the write fails,
+	 * and by the timeout task when no response arrives in time.
+	 * Never blocks: a full in-flight window fails the call at once, so one slow server
+	 * does not stall a caller that also sends to other servers.
+	 */
+	@Override
+	public ResponseFuture sendAsync(final Request request) {
+		sendCount.incrementAndGet();
+		ResponseFuture newResponseFuture = new ResponseFuture(request, timeout);
+		registerCallback(request.getRequestId(), newResponseFuture, false);
+		newResponseFuture.addListener(errorCountListener);
+		
+		Channel channel = selectChannel();
+		if (channel == null) {
+			failCallback(request.getRequestId(), null);
+			return newResponseFuture;
+		}
+		
+		channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture writeFuture) throws Exception {
+				if (!writeFuture.isSuccess()) {
+					failCallback(request.getRequestId(), writeFuture.cause());
+				}
+			}
+		});
+		return newResponseFuture;
+	}
 
+	/**
+	 * True only while every channel is up, so a single dead channel gets reconnected.
+	 */
 	@Override
 	public boolean isConnected() {
-		if(channel == null) {
-			return false;
+		for (Channel channel : channels) {
+			if (channel == null || !channel.isActive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// round robin over the active channels
+	private Channel selectChannel() {
+		int start = channelIndex.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < channels.length; i++) {
+			Channel channel = channels[(start + i) % channels.length];
+			if (channel != null && channel.isActive()) {
+				return channel;
+			}
 		}
-		return channel.isActive();
+		return null;
 	}
 	
 	@Override
@@ -225,16 +314,56 @@ public class NettyClient implements Client {
 		return remoteAddress;
 	}
 	
-	public void registerCallback(long requestId, ResponseFuture nettyResponseFuture) {
-		if (this.callbackMap.size() >= Protocol.CLIENT_MAX_REQUEST) {
+	public void registerCallback(final long requestId, ResponseFuture nettyResponseFuture, boolean wait) {
+		boolean acquired = false;
+		if (wait) {
+			try {
+				// a synchronous caller waits for an in-flight slot instead of dropping the request at once
+				acquired = inflightWindow.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			acquired = inflightWindow.tryAcquire();
+		}
+		if (!acquired) {
+			errorCount.incrementAndGet();
 			throw new RuntimeException("Client over max concurrent request, drop request, remoteAddress="
 					+ remoteAddress + " requestId=" + requestId);
 		}
 		this.callbackMap.put(requestId, nettyResponseFuture);
+		nettyResponseFuture.setTimeoutHandle(RequestTimeoutTimer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				// timeout: remove from callback list, and then cancel
+				ResponseFuture future = removeCallback(requestId);
+				if (future != null) {
+					future.cancel();
+				}
+			}
+		}, timeout));
 	}
 	
 	public ResponseFuture removeCallback(long requestId) {
-		return callbackMap.remove(requestId);
+		ResponseFuture responseFuture = callbackMap.remove(requestId);
+		if (responseFuture != null) {
+			responseFuture.cancelTimeout();
+			inflightWindow.release();
+		}
+		return responseFuture;
+	}
+	
+	private void failCallback(long requestId, Throwable cause) {
+		ResponseFuture responseFuture = removeCallback(requestId);
+		if (responseFuture == null) {
+			return;
+		}
+		String errorMsg = "Error occured while sending request to server, remoteAddress=" + remoteAddress 
+				+ ", localAddress=" + localAddress +", requestId=" + requestId;
+		Response response = new Response();
+		response.setRequestId(requestId);
+		response.setException(new RuntimeException(errorMsg, cause));
+		responseFuture.onFailure(response);
 	}
 
 }
@@ -4,6 +4,7 @@ import java.util.List;
 
 import com.github.zjzcn.ceper.transport.Protocol;
 import com.github.zjzcn.ceper.transport.Response;
+import com.github.zjzcn.ceper.transport.compression.CompressorFactory;
 import com.github.zjzcn.ceper.transport.serialization.Serializer;
 import com.github.zjzcn.ceper.transport.serialization.SerializerFactory;
 
@@ -13,11 +14,9 @@ import io.netty.handler.codec.ByteToMessageDecoder;
 
 public class NettyDecoder extends ByteToMessageDecoder {
 
-	private Serializer serializer = SerializerFactory.create();
-	
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-		if (in.readableBytes() <= Protocol.MESSAGE_HEADER_LENGTH) {
+		if (in.readableBytes() < Protocol.MESSAGE_HEADER_LENGTH) {
 			return;
 		}
 
@@ -30,23 +29,37 @@ public class NettyDecoder extends ByteToMessageDecoder {
 		}
 
 		byte messageType = in.readByte();
-		//协议扩展 1byte 保留
-		@SuppressWarnings("unused")
+		//协议扩展 1byte: serializer id, compressor id
 		byte ext = in.readByte();
 		long requestId = in.readLong();
 
 		int dataLength = in.readInt();
+		if (dataLength < 0 || dataLength > Protocol.MAX_BODY_LENGTH) {
+			throw new RuntimeException("NettyDecoder body length out of range, length: " + dataLength);
+		}
 
 		if (in.readableBytes() < dataLength) {
 			in.resetReaderIndex();
 			return;
 		}
 
-		byte[] data = new byte[dataLength];
-
-		in.readBytes(data);
+		// a view on the frame body, no copy
+		ByteBuf data = in.readSlice(dataLength);
+		byte compressorId = (byte)((ext & Protocol.EXT_COMPRESSOR_MASK) >> Protocol.EXT_COMPRESSOR_SHIFT);
 		
+		ByteBuf uncompressed = null;
 		try {
+			if (compressorId != CompressorFactory.NONE_COMPRESSOR_ID) {
+				int uncompressedLength = data.readInt();
+				if (uncompressedLength < 0 || uncompressedLength > Protocol.MAX_BODY_LENGTH) {
+					throw new RuntimeException("NettyDecoder uncompressed length out of range, length: " + uncompressedLength);
+				}
+				// a body decompressing to more than it claims fails instead of growing the buffer
+				uncompressed = ctx.alloc().buffer(uncompressedLength, uncompressedLength);
+				CompressorFactory.getCompressor(compressorId).decompress(data, uncompressed, uncompressedLength);
+				data = uncompressed;
+			}
+			Serializer serializer = SerializerFactory.getSerializer((byte)(ext & Protocol.EXT_SERIALIZER_MASK));
 			out.add(serializer.deserialize(data, Object.class));
 		} catch (Exception e) {
 			if (messageType == Protocol.MessageType.HEARTBEAT_REQ) {
@@ -56,8 +69,16 @@ public class NettyDecoder extends ByteToMessageDecoder {
 				Response resonse = Protocol.buildMessageResponse(requestId);
 				resonse.setException(e);
 				ctx.write(resonse);
+			} else if(messageType == Protocol.MessageType.STATE_REQ) {
+				Response resonse = Protocol.buildStateResponse(requestId);
+				resonse.setException(e);
+				ctx.write(resonse);
 			}
 			throw e;
+		} finally {
+			if (uncompressed != null) {
+				uncompressed.release();
+			}
 		}
 	}
 
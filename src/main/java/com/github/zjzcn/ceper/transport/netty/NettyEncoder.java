@@ -3,6 +3,8 @@ package com.github.zjzcn.ceper.transport.netty;
 import com.github.zjzcn.ceper.transport.Protocol;
 import com.github.zjzcn.ceper.transport.Request;
 import com.github.zjzcn.ceper.transport.Response;
+import com.github.zjzcn.ceper.transport.compression.Compressor;
+import com.github.zjzcn.ceper.transport.compression.CompressorFactory;
 import com.github.zjzcn.ceper.transport.serialization.Serializer;
 import com.github.zjzcn.ceper.transport.serialization.SerializerFactory;
 
@@ -13,6 +15,8 @@ import io.netty.handler.codec.MessageToByteEncoder;
 public class NettyEncoder extends MessageToByteEncoder<Object> {
 
 	private Serializer serializer = SerializerFactory.create();
+	private Compressor compressor = CompressorFactory.create();
+	private int compressionThreshold = CompressorFactory.getCompressionThreshold();
 	
 	@Override
 	protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
@@ -29,14 +33,39 @@ public class NettyEncoder extends MessageToByteEncoder<Object> {
 			messageType = resp.getMessageType();
 		}
 		
-		byte[] data = serializer.serialize(msg);
-		
 		out.writeShort(Protocol.MESSAGE_MAGIC);
 		out.writeByte(messageType);
-		out.writeByte(0);
+		int extIndex = out.writerIndex();
+		out.writeByte(serializer.getSerializerId() & Protocol.EXT_SERIALIZER_MASK);
 		out.writeLong(requestId);
-		out.writeInt(data.length);
-		out.writeBytes(data);
+		// body length is filled in after the body is serialized into out
+		int lengthIndex = out.writerIndex();
+		out.writeInt(0);
+		int bodyIndex = out.writerIndex();
+		serializer.serialize(msg, out);
+		int bodyLength = out.writerIndex() - bodyIndex;
+		if (compressor != null && bodyLength >= compressionThreshold) {
+			compress(ctx, out, extIndex, bodyIndex, bodyLength);
+		}
+		out.setInt(lengthIndex, out.writerIndex() - bodyIndex);
+	}
+	
+	private void compress(ChannelHandlerContext ctx, ByteBuf out, int extIndex, int bodyIndex, int bodyLength) {
+		ByteBuf compressed = ctx.alloc().buffer(bodyLength);
+		try {
+			compressor.compress(out.slice(bodyIndex, bodyLength), compressed);
+			// keep the frame as it is if compression does not pay off
+			if (compressed.readableBytes() + 4 >= bodyLength) {
+				return;
+			}
+			out.writerIndex(bodyIndex);
+			out.writeInt(bodyLength);
+			out.writeBytes(compressed);
+			int ext = out.getByte(extIndex) | (compressor.getCompressorId() << Protocol.EXT_COMPRESSOR_SHIFT);
+			out.setByte(extIndex, ext);
+		} finally {
+			compressed.release();
+		}
 	}
 
 }
@@ -0,0 +1,402 @@
+package com.github.zjzcn.ceper.transport.serialization;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.zjzcn.ceper.event.ResultEvent;
+import com.github.zjzcn.ceper.event.SourceEvent;
+import com.github.zjzcn.ceper.transport.Request;
+import com.github.zjzcn.ceper.transport.Response;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Compact codec for the messages exchanged between nodes: Request and Response
+ * carrying SourceEvent, event batches and ResultEvent.
+ * 
+ * <pre>
+ * 	every value starts with a 1 byte type tag
+ * 	int/long:  zigzag varint
+ * 	string:    written once per frame, later occurrences refer to it by index
+ * 	map/list:  varint size, then the values
+ * 	others:    FST bytes with a varint length
+ * </pre>
+ * 
+ * Decoded strings up to 64 chars are interned, so dataType, sourceName and field
+ * names of all events share the same instances.
+ * 
+ * @author zjzcn
+ *
+ */
+public class BinarySerializer implements Serializer {
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte STRING_REF = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte FLOAT = 6;
+	private static final byte TRUE = 7;
+	private static final byte FALSE = 8;
+	private static final byte SHORT = 9;
+	private static final byte BYTE = 10;
+	private static final byte BYTES = 11;
+	private static final byte MAP = 12;
+	private static final byte LIST = 13;
+	private static final byte SOURCE_EVENT = 14;
+	private static final byte RESULT_EVENT = 15;
+	private static final byte REQUEST = 16;
+	private static final byte RESPONSE = 17;
+	private static final byte OBJECT = 18;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int MAX_INTERN_LENGTH = 64;
+	private static final int MAX_INTERN_COUNT = 100000;
+	
+	private static final ConcurrentMap<String, String> internedStrings = new ConcurrentHashMap<String, String>();
+	
+	private final Serializer fallback = SerializerFactory.getSerializer(SerializerFactory.FST_SERIALIZER_ID);
+	
+	// string tables of the frame being written/read by the current thread
+	private final ThreadLocal<Map<String, Integer>> writeTables = new ThreadLocal<Map<String, Integer>>() {
+		@Override
+		protected Map<String, Integer> initialValue() {
+			return new HashMap<String, Integer>();
+		}
+	};
+	private final ThreadLocal<List<String>> readTables = new ThreadLocal<List<String>>() {
+		@Override
+		protected List<String> initialValue() {
+			return new ArrayList<String>();
+		}
+	};
+	
+	@Override
+	public byte getSerializerId() {
+		return SerializerFactory.BINARY_SERIALIZER_ID;
+	}
+	
+	@Override
+	public byte[] serialize(Object obj) {
+		ByteBuf buf = Unpooled.buffer(256);
+		try {
+			serialize(obj, buf);
+			byte[] bytes = new byte[buf.readableBytes()];
+			buf.readBytes(bytes);
+			return bytes;
+		} finally {
+			buf.release();
+		}
+	}
+
+	@Override
+	public <T> T deserialize(byte[] bytes, Class<T> clazz) {
+		return deserialize(Unpooled.wrappedBuffer(bytes), clazz);
+	}
+
+	@Override
+	public void serialize(Object obj, ByteBuf out) {
+		Map<String, Integer> table = writeTables.get();
+		try {
+			writeValue(obj, out, table);
+		} finally {
+			table.clear();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T deserialize(ByteBuf in, Class<T> clazz) {
+		List<String> table = readTables.get();
+		try {
+			return (T)readValue(in, table);
+		} finally {
+			table.clear();
+		}
+	}
+	
+	private void writeValue(Object value, ByteBuf out, Map<String, Integer> table) {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			writeString((String)value, out, table);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			writeVarLong(out, (Integer)value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			writeVarLong(out, (Long)value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double)value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float)value);
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean)value ? TRUE : FALSE);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short)value);
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte)value);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[])value;
+			out.writeByte(BYTES);
+			writeVarInt(out, bytes.length);
+			out.writeBytes(bytes);
+		} else if (value instanceof SourceEvent) {
+			SourceEvent event = (SourceEvent)value;
+			out.writeByte(SOURCE_EVENT);
+			writeValue(event.getSourceName(), out, table);
+			writeValue(event.getDataType(), out, table);
+			writeValue(event.getHashTag(), out, table);
+			writeVarLong(out, event.getTimestamp());
+			writeValue(event.getData(), out, table);
+			writeValue(event.getAttachments(), out, table);
+		} else if (value instanceof ResultEvent) {
+			ResultEvent event = (ResultEvent)value;
+			out.writeByte(RESULT_EVENT);
+			writeValue(event.getProcessorType(), out, table);
+			writeValue(event.getStatementId(), out, table);
+			writeVarLong(out, event.getTimestamp());
+			writeValue(event.getResult(), out, table);
+			writeValue(event.getAttachments(), out, table);
+		} else if (value instanceof Request) {
+			Request req = (Request)value;
+			out.writeByte(REQUEST);
+			out.writeLong(req.getRequestId());
+			out.writeByte(req.getMessageType());
+			writeValue(req.getData(), out, table);
+			writeValue(req.getAttachments(), out, table);
+		} else if (value instanceof Response) {
+			Response resp = (Response)value;
+			out.writeByte(RESPONSE);
+			out.writeLong(resp.getRequestId());
+			out.writeByte(resp.getMessageType());
+			writeVarLong(out, resp.getProcessTime());
+			writeVarLong(out, resp.getTimeout());
+			writeValue(resp.getException(), out, table);
+			writeValue(resp.getData(), out, table);
+			writeValue(resp.getAttachments(), out, table);
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>)value;
+			out.writeByte(MAP);
+			writeVarInt(out, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeValue(entry.getKey(), out, table);
+				writeValue(entry.getValue(), out, table);
+			}
+		} else if (value instanceof List) {
+			List<?> list = (List<?>)value;
+			out.writeByte(LIST);
+			writeVarInt(out, list.size());
+			for (Object element : list) {
+				writeValue(element, out, table);
+			}
+		} else {
+			out.writeByte(OBJECT);
+			int lengthIndex = out.writerIndex();
+			out.writeInt(0);
+			fallback.serialize(value, out);
+			out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Object readValue(ByteBuf in, List<String> table) {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING:
+			return readString(in, table);
+		case STRING_REF:
+			return table.get(readVarInt(in));
+		case INT:
+			return (int)readVarLong(in);
+		case LONG:
+			return readVarLong(in);
+		case DOUBLE:
+			return in.readDouble();
+		case FLOAT:
+			return in.readFloat();
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case SHORT:
+			return in.readShort();
+		case BYTE:
+			return in.readByte();
+		case BYTES: {
+			byte[] bytes = new byte[readVarInt(in)];
+			in.readBytes(bytes);
+			return bytes;
+		}
+		case SOURCE_EVENT: {
+			SourceEvent event = new SourceEvent();
+			event.setSourceName((String)readValue(in, table));
+			event.setDataType((String)readValue(in, table));
+			event.setHashTag((String)readValue(in, table));
+			event.setTimstamp(readVarLong(in));
+			event.setData((Map<String, Object>)readValue(in, table));
+			event.setAttachments((Map<String, Object>)readValue(in, table));
+			return event;
+		}
+		case RESULT_EVENT: {
+			ResultEvent event = new ResultEvent();
+			event.setProcessorType((String)readValue(in, table));
+			event.setStatementId((String)readValue(in, table));
+			event.setTimestamp(readVarLong(in));
+			event.setResult(readValue(in, table));
+			event.setAttachments((Map<String, Object>)readValue(in, table));
+			return event;
+		}
+		case REQUEST: {
+			Request req = new Request();
+			req.setRequestId(in.readLong());
+			req.setMessageType(in.readByte());
+			req.setData(readValue(in, table));
+			req.setAttachments((Map<String, Object>)readValue(in, table));
+			return req;
+		}
+		case RESPONSE: {
+			Response resp = new Response();
+			resp.setRequestId(in.readLong());
+			resp.setMessageType(in.readByte());
+			resp.setProcessTime(readVarLong(in));
+			resp.setTimeout((int)readVarLong(in));
+			resp.setException((Exception)readValue(in, table));
+			resp.setData(readValue(in, table));
+			resp.setAttachments((Map<String, Object>)readValue(in, table));
+			return resp;
+		}
+		case MAP: {
+			int size = readVarInt(in);
+			Map<Object, Object> map = new HashMap<Object, Object>(size * 4 / 3 + 1);
+			for (int i = 0; i < size; i++) {
+				Object key = readValue(in, table);
+				map.put(key, readValue(in, table));
+			}
+			return map;
+		}
+		case LIST: {
+			int size = readVarInt(in);
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(in, table));
+			}
+			return list;
+		}
+		case OBJECT: {
+			int length = in.readInt();
+			return fallback.deserialize(in.readSlice(length), Object.class);
+		}
+		default:
+			throw new RuntimeException("BinarySerializer not supported type tag: " + tag);
+		}
+	}
+	
+	private void writeString(String value, ByteBuf out, Map<String, Integer> table) {
+		Integer index = table.get(value);
+		if (index != null) {
+			out.writeByte(STRING_REF);
+			writeVarInt(out, index);
+			return;
+		}
+		table.put(value, table.size());
+		out.writeByte(STRING);
+		if (isAscii(value)) {
+			writeVarInt(out, value.length());
+			ByteBufUtil.writeAscii(out, value);
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarInt(out, bytes.length);
+			out.writeBytes(bytes);
+		}
+	}
+	
+	private String readString(ByteBuf in, List<String> table) {
+		int length = readVarInt(in);
+		String value = in.toString(in.readerIndex(), length, UTF8);
+		in.skipBytes(length);
+		if (length <= MAX_INTERN_LENGTH) {
+			value = intern(value);
+		}
+		table.add(value);
+		return value;
+	}
+	
+	private static String intern(String value) {
+		String interned = internedStrings.get(value);
+		if (interned != null) {
+			return interned;
+		}
+		if (internedStrings.size() >= MAX_INTERN_COUNT) {
+			return value;
+		}
+		interned = internedStrings.putIfAbsent(value, value);
+		return interned == null ? value : interned;
+	}
+	
+	private static boolean isAscii(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static void writeVarInt(ByteBuf out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	private static int readVarInt(ByteBuf in) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new RuntimeException("BinarySerializer malformed varint.");
+	}
+	
+	// zigzag, so small negative numbers stay short
+	private static void writeVarLong(ByteBuf out, long value) {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+	
+	private static long readVarLong(ByteBuf in) {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (v >>> 1) ^ -(v & 1);
+			}
+		}
+		throw new RuntimeException("BinarySerializer malformed varint.");
+	}
+}
@@ -1,14 +1,26 @@
 package com.github.zjzcn.ceper.transport.serialization;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 import org.nustaq.serialization.FSTConfiguration;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 
 public class FstSerializer implements Serializer {
 
 	private FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
 	
+	@Override
+	public byte getSerializerId() {
+		return SerializerFactory.FST_SERIALIZER_ID;
+	}
+	
 	@Override
 	public byte[] serialize(Object obj) {
 		return conf.asByteArray(obj);
@@ -19,6 +31,29 @@ public class FstSerializer implements Serializer {
 	public <T> T deserialize(byte[] bytes, Class<T> clazz) {
 		return (T)conf.asObject(bytes);
 	}
+	
+	@Override
+	public void serialize(Object obj, ByteBuf out) {
+		try {
+			// the per thread FSTObjectOutput is reused, its buffer is flushed straight into out
+			FSTObjectOutput output = conf.getObjectOutput(new ByteBufOutputStream(out));
+			output.writeObject(obj);
+			output.flush();
+		} catch (IOException e) {
+			throw new RuntimeException("FstSerializer serialize error.", e);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T deserialize(ByteBuf in, Class<T> clazz) {
+		try {
+			FSTObjectInput input = conf.getObjectInput(new ByteBufInputStream(in));
+			return (T)input.readObject();
+		} catch (Exception e) {
+			throw new RuntimeException("FstSerializer deserialize error.", e);
+		}
+	}
 
 	public static void main(String[] args) {
 		byte[] b = new FstSerializer().serialize(Arrays.asList("dddd", "cccc"));
@@ -1,8 +1,25 @@
 package com.github.zjzcn.ceper.transport.serialization;
 
+import io.netty.buffer.ByteBuf;
+
 public interface Serializer {
 
+	/**
+	 * Id written to the ext byte of the message header, 0 - 15.
+	 */
+	public byte getSerializerId();
+
 	public byte[] serialize(Object obj);
 	
 	public <T> T deserialize(byte[] bytes, Class<T> clazz);
+	
+	/**
+	 * Serialize obj at the writer index of out.
+	 */
+	public void serialize(Object obj, ByteBuf out);
+	
+	/**
+	 * Deserialize from all readable bytes of in.
+	 */
+	public <T> T deserialize(ByteBuf in, Class<T> clazz);
 }
@@ -1,8 +1,94 @@
 package com.github.zjzcn.ceper.transport.serialization;
 
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.zjzcn.ceper.transport.Protocol;
+import com.github.zjzcn.ceper.utils.Assert;
+import com.github.zjzcn.ceper.utils.ClassUtils;
+import com.typesafe.config.Config;
+
+/**
+ * Serializers are shared and looked up by the id carried in the ext byte of the
+ * message header, so a node decodes whatever serializer its peer was configured with.
+ * The lookup is on every decoded frame and takes no lock: the built-in serializers
+ * are created up front, a custom one is added by replacing the whole array.
+ */
 public class SerializerFactory {
 
+	private static final Logger logger = LoggerFactory.getLogger(SerializerFactory.class);
+	
+	public static final byte FST_SERIALIZER_ID = 0;
+	public static final byte BINARY_SERIALIZER_ID = 1;
+	
+	private static volatile Serializer[] serializers;
+	
+	static {
+		Serializer[] builtIn = new Serializer[Protocol.EXT_SERIALIZER_MASK + 1];
+		builtIn[FST_SERIALIZER_ID] = new FstSerializer();
+		builtIn[BINARY_SERIALIZER_ID] = new BinarySerializer();
+		serializers = builtIn;
+	}
+	
+	private static volatile String serializerType = "fst";
+	
+	public static void config(Config config) {
+		if (config.hasPath("serializer")) {
+			serializerType = config.getString("serializer");
+		}
+		Serializer serializer = create();
+		logger.info("Serializer configured, type={}, id={}", serializerType, serializer.getSerializerId());
+	}
+	
+	/**
+	 * @return the serializer configured for this cluster
+	 */
 	public static Serializer create() {
-		return new FstSerializer();
+		return create(serializerType);
+	}
+	
+	public static Serializer create(String type) {
+		Assert.notBlank(type, "type must have value");
+		switch (type) {
+		case "fst":
+			return getSerializer(FST_SERIALIZER_ID);
+		case "binary":
+			return getSerializer(BINARY_SERIALIZER_ID);
+		default:
+			return register(type);
+		}
+	}
+	
+	public static Serializer getSerializer(byte serializerId) {
+		Serializer[] current = serializers;
+		Serializer serializer = serializerId >= 0 && serializerId < current.length ? current[serializerId] : null;
+		if (serializer == null) {
+			throw new IllegalArgumentException("Not supported serializer id: " + serializerId);
+		}
+		return serializer;
+	}
+	
+	private static synchronized Serializer register(String type) {
+		for (Serializer serializer : serializers) {
+			if (serializer != null && serializer.getClass().getName().equals(type)) {
+				return serializer;
+			}
+		}
+		Serializer serializer;
+		try {
+			serializer = (Serializer) ClassUtils.newInstance(type);
+		} catch (Exception ex) {
+			throw new RuntimeException("Unable to create Serializer, type=" + type, ex);
+		}
+		byte id = serializer.getSerializerId();
+		if (id <= BINARY_SERIALIZER_ID || id >= serializers.length || serializers[id] != null) {
+			throw new IllegalArgumentException("Serializer id " + id + " of " + type + " is reserved or used.");
+		}
+		Serializer[] copy = Arrays.copyOf(serializers, serializers.length);
+		copy[id] = serializer;
+		serializers = copy;
+		return serializer;
 	}
 }
@@ -1,20 +1,37 @@
 package com.github.zjzcn.ceper.utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
+import java.util.Set;
+
+/**
+ * A consistent hash ring on a sorted long[] of replica points, hashed with
+ * {@link HashUtils#hash64(String)}. The ring is rebuilt on every change and published
+ * as an immutable snapshot, so {@link #get(Object)} takes no lock and allocates
+ * nothing for a String key: one hash and one binary search.
+ * 
+ * @author zjzcn
+ *
+ */
 public class ConsistentHash<T> {
 
 	public static final int DEFAULT_CONSISTENT_HASH_REPLICAS = 1000;
-	 
-	private final SortedMap<Integer, T> circle = new TreeMap<Integer, T>();
-	private final HashFunction hashFunction;
+
 	private final int numberOfReplicas;
+
+	// guarded by this
+	private final Set<T> nodes = new LinkedHashSet<T>();
+
+	private volatile Ring<T> ring = Ring.build(Collections.<T>emptySet(), 0);
 	
 	public ConsistentHash() {
 		this(DEFAULT_CONSISTENT_HASH_REPLICAS, new HashSet<T>());
@@ -25,67 +42,118 @@ public class ConsistentHash<T> {
 	}
 	
 	public ConsistentHash(int numberOfReplicas, Collection<T> nodes) {
-		this.hashFunction = new HashFunction();
 		this.numberOfReplicas = numberOfReplicas;
-
-		for (T node : nodes) {
-			add(node);
-		}
+		addAll(nodes);
 	}
 
-	public void add(T node) {
-		for (int i = 0; i < numberOfReplicas; i++) {
-			circle.put(hashFunction.hash(node.toString() + i), node);
+	public synchronized void add(T node) {
+		if (nodes.add(node)) {
+			ring = Ring.build(nodes, numberOfReplicas);
 		}
 	}
 
-	public void addAll(Collection<T> nodes) {
-		for (T node : nodes) {
-			add(node);
+	public synchronized void addAll(Collection<T> nodes) {
+		if (this.nodes.addAll(nodes)) {
+			ring = Ring.build(this.nodes, numberOfReplicas);
 		}
 	}
 	
-	public void remove(T node) {
-		for (int i = 0; i < numberOfReplicas; i++) {
-			circle.remove(hashFunction.hash(node.toString() + i));
+	public synchronized void remove(T node) {
+		if (nodes.remove(node)) {
+			ring = Ring.build(nodes, numberOfReplicas);
 		}
 	}
 	
-	public void removeAll() {
-		circle.clear();
+	public synchronized void removeAll() {
+		nodes.clear();
+		ring = Ring.build(nodes, numberOfReplicas);
 	}
 
 	public boolean contains(T node) {
-		for (int i = 0; i < numberOfReplicas; i++) {
-			if(circle.containsKey(hashFunction.hash(node.toString() + i))) {
-				return true;
-			}
-		}
-		return false;
+		return ring.nodes.contains(node);
 	}
 	
 	public T get(Object key) {
-		if (circle.isEmpty()) {
+		Ring<T> r = ring;
+		long[] points = r.points;
+		if (points.length == 0) {
 			return null;
 		}
-		int hash = hashFunction.hash(key);
-		// System.out.println("hash---: " + hash);
-		if (!circle.containsKey(hash)) {
-			SortedMap<Integer, T> tailMap = circle.tailMap(hash);
-			hash = tailMap.isEmpty() ? circle.firstKey() : tailMap.firstKey();
+		long hash = HashUtils.hash64(key instanceof String ? (String) key : key.toString());
+		int i = Arrays.binarySearch(points, hash);
+		if (i < 0) {
+			// the first point after the hash, clockwise
+			i = -i - 1;
+			if (i == points.length) {
+				i = 0;
+			}
 		}
-		// System.out.println("hash---: " + hash);
-		return circle.get(hash);
+		return r.owners[i];
 	}
 
 	public Collection<T> getAll() {
-		return circle.values();
+		return ring.nodes;
 	}
-	
-	public static class HashFunction {
-		int hash(Object key) {
-			// md5加密后，hashcode
-			return Md5Utils.md5Hex(key.toString()).hashCode();
+
+	private static final class Ring<T> {
+
+		final Set<T> nodes;
+
+		final long[] points;
+
+		final T[] owners;
+
+		private Ring(Set<T> nodes, long[] points, T[] owners) {
+			this.nodes = nodes;
+			this.points = points;
+			this.owners = owners;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <T> Ring<T> build(Collection<T> nodes, int numberOfReplicas) {
+			List<Point> all = new ArrayList<Point>(nodes.size() * numberOfReplicas);
+			for (T node : nodes) {
+				String name = node.toString();
+				for (int i = 0; i < numberOfReplicas; i++) {
+					all.add(new Point(HashUtils.hash64(name + i), name, node));
+				}
+			}
+			Collections.sort(all, new Comparator<Point>() {
+				@Override
+				public int compare(Point p1, Point p2) {
+					int c = Long.compare(p1.hash, p2.hash);
+					// on a collision the same node wins on every member
+					return c != 0 ? c : p1.name.compareTo(p2.name);
+				}
+			});
+			long[] points = new long[all.size()];
+			Object[] owners = new Object[all.size()];
+			int size = 0;
+			for (Point point : all) {
+				if (size > 0 && points[size - 1] == point.hash) {
+					continue;
+				}
+				points[size] = point.hash;
+				owners[size] = point.node;
+				size++;
+			}
+			Set<T> members = Collections.unmodifiableSet(new LinkedHashSet<T>(nodes));
+			return new Ring<T>(members, Arrays.copyOf(points, size), (T[]) Arrays.copyOf(owners, size));
+		}
+	}
+
+	private static final class Point {
+
+		final long hash;
+
+		final String name;
+
+		final Object node;
+
+		Point(long hash, String name, Object node) {
+			this.hash = hash;
+			this.name = name;
+			this.node = node;
 		}
 	}
 
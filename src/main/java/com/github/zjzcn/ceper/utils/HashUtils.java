@@ -0,0 +1,44 @@
+package com.github.zjzcn.ceper.utils;
+
+/**
+ * Fast non-cryptographic 64-bit hashes.
+ * 
+ * @author zjzcn
+ *
+ */
+public class HashUtils {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	/**
+	 * FNV-1a over the chars, finished with the murmur3 fmix64 avalanche.
+	 */
+	public static long hash64(String str) {
+		long h = FNV_OFFSET;
+		for (int i = 0, len = str.length(); i < len; i++) {
+			h ^= str.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return mix64(h);
+	}
+	
+	/**
+	 * Hash of several values, order matters.
+	 */
+	public static long combine(long h1, long h2) {
+		return mix64(h1 * 31 + h2);
+	}
+	
+	/**
+	 * murmur3 fmix64: every input bit affects every output bit.
+	 */
+	public static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
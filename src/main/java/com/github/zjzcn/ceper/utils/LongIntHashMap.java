@@ -0,0 +1,167 @@
+package com.github.zjzcn.ceper.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing long to int map with linear probing, no boxing. Not thread safe.
+ * Removal shifts the following entries of the probe sequence back, no tombstones.
+ * 
+ * @author zjzcn
+ *
+ */
+public class LongIntHashMap {
+
+	private static final long EMPTY = 0L;
+	
+	private static final float LOAD_FACTOR = 0.6f;
+	
+	private long[] keys;
+	
+	private int[] values;
+	
+	private int mask;
+	
+	private int size;
+	
+	private int resizeAt;
+	
+	// key 0 marks an empty slot, so it is kept aside
+	private boolean hasZeroKey;
+	
+	private int zeroValue;
+	
+	public LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+	
+	/**
+	 * @return the value, or missing if the key is absent
+	 */
+	public int get(long key, int missing) {
+		if (key == EMPTY) {
+			return hasZeroKey ? zeroValue : missing;
+		}
+		int index = index(key);
+		while (true) {
+			long k = keys[index];
+			if (k == key) {
+				return values[index];
+			}
+			if (k == EMPTY) {
+				return missing;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+	
+	public void put(long key, int value) {
+		if (key == EMPTY) {
+			if (!hasZeroKey) {
+				hasZeroKey = true;
+				size++;
+			}
+			zeroValue = value;
+			return;
+		}
+		int index = index(key);
+		while (true) {
+			long k = keys[index];
+			if (k == key) {
+				values[index] = value;
+				return;
+			}
+			if (k == EMPTY) {
+				keys[index] = key;
+				values[index] = value;
+				if (++size > resizeAt) {
+					rehash();
+				}
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+	
+	/**
+	 * @return the removed value, or missing if the key is absent
+	 */
+	public int remove(long key, int missing) {
+		if (key == EMPTY) {
+			if (!hasZeroKey) {
+				return missing;
+			}
+			hasZeroKey = false;
+			size--;
+			return zeroValue;
+		}
+		int index = index(key);
+		while (true) {
+			long k = keys[index];
+			if (k == key) {
+				break;
+			}
+			if (k == EMPTY) {
+				return missing;
+			}
+			index = (index + 1) & mask;
+		}
+		int value = values[index];
+		int gap = index;
+		int next = (gap + 1) & mask;
+		while (keys[next] != EMPTY) {
+			// an entry moves into the gap if the gap is on its way from its home slot
+			int home = index(keys[next]);
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[gap] = EMPTY;
+		size--;
+		return value;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		hasZeroKey = false;
+		size = 0;
+	}
+	
+	private int index(long key) {
+		return (int) HashUtils.mix64(key) & mask;
+	}
+	
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != EMPTY) {
+				int index = index(key);
+				while (keys[index] != EMPTY) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = key;
+				values[index] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package ceper;
+
+import java.util.Random;
+
+import com.github.zjzcn.ceper.transport.compression.Compressor;
+import com.github.zjzcn.ceper.transport.compression.CompressorFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Compresses and decompresses bodies up to several route batches large with every
+ * compressor, on heap and direct buffers, and fails on any difference. Corrupted
+ * bodies and out of range lengths must be rejected.
+ */
+public class CompressorRoundTrip {
+
+	public static void main(String[] args) {
+		byte[] ids = { CompressorFactory.SNAPPY_COMPRESSOR_ID, CompressorFactory.LZ4_COMPRESSOR_ID };
+		int[] sizes = { 0, 1, 1024, 32 * 1024 - 1, 32 * 1024, 32 * 1024 + 1, 100 * 1024, 4 * 1024 * 1024 };
+		Random random = new Random(1);
+		for (byte id : ids) {
+			Compressor compressor = CompressorFactory.getCompressor(id);
+			for (int size : sizes) {
+				byte[] body = new byte[size];
+				// half json like text, half random
+				for (int i = 0; i < size; i++) {
+					body[i] = i % 2048 < 1024 ? (byte) ("{\"price\":12,".charAt(i % 12)) : (byte) random.nextInt();
+				}
+				check(compressor, body, Unpooled.wrappedBuffer(body), Unpooled.buffer());
+				check(compressor, body, Unpooled.directBuffer(size).writeBytes(body),
+						PooledByteBufAllocator.DEFAULT.directBuffer());
+			}
+			checkMalformed(compressor, random);
+			System.out.println(compressor.getClass().getSimpleName() + " ok");
+		}
+	}
+
+	private static void checkMalformed(Compressor compressor, Random random) {
+		byte[] body = new byte[100 * 1024];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte) ("{\"price\":12,".charAt(i % 12));
+		}
+		ByteBuf compressed = Unpooled.buffer();
+		compressor.compress(Unpooled.wrappedBuffer(body), compressed);
+		byte[] bytes = new byte[compressed.readableBytes()];
+		compressed.readBytes(bytes);
+		for (int i = 0; i < 1000; i++) {
+			byte[] corrupted = bytes.clone();
+			for (int j = 0; j < 4; j++) {
+				corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt();
+			}
+			// a bounded buffer like the decoder's, a good guess of the corruption is fine
+			ByteBuf out = Unpooled.buffer(body.length, body.length);
+			try {
+				compressor.decompress(Unpooled.wrappedBuffer(corrupted), out, body.length);
+			} catch (RuntimeException e) {
+				// rejected
+			}
+		}
+		expectFailure(compressor, bytes, -1);
+		expectFailure(compressor, bytes, Integer.MAX_VALUE);
+		expectFailure(compressor, bytes, body.length - 1);
+	}
+
+	private static void expectFailure(Compressor compressor, byte[] bytes, int uncompressedLength) {
+		try {
+			compressor.decompress(Unpooled.wrappedBuffer(bytes), Unpooled.buffer(), uncompressedLength);
+		} catch (RuntimeException e) {
+			return;
+		}
+		throw new IllegalStateException(compressor.getClass().getSimpleName() + " accepted length " + uncompressedLength);
+	}
+
+	private static void check(Compressor compressor, byte[] body, ByteBuf in, ByteBuf compressed) {
+		try {
+			compressor.compress(in, compressed);
+			ByteBuf out = Unpooled.buffer(body.length);
+			compressor.decompress(compressed, out, body.length);
+			if (!ByteBufUtil.equals(out, Unpooled.wrappedBuffer(body)) || compressed.isReadable()) {
+				throw new IllegalStateException(compressor.getClass().getSimpleName() + " round trip failed, size=" + body.length);
+			}
+		} finally {
+			in.release();
+			compressed.release();
+		}
+	}
+}